@@ -7,6 +7,8 @@ import android.view.View;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.List;
+
 import mdns.android.com.mdns.multicast.DNSData;
 import mdns.android.com.mdns.multicast.IPCHandler;
 
@@ -73,8 +75,15 @@ public class MainActivity extends Activity {
     public class MDNSListener implements IPCHandler.MDNSListener{
 
         @Override
-        public void onResponse(DNSData data) {
-            toast("Response received from: " + data.src);
+        public void onResponses(List<DNSData> responses) {
+            StringBuilder sources = new StringBuilder();
+            for (DNSData data : responses) {
+                if (sources.length() > 0) {
+                    sources.append(", ");
+                }
+                sources.append(data.src);
+            }
+            toast("Response received from: " + sources);
         }
     }
 
@@ -1,86 +1,160 @@
 package mdns.android.com.mdns.dns;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 /**
  * This class represents a DNS "answer" component.
  */
 public class DNSAnswer extends DNSComponent {
 
-    public String name;
+    public DNSName name;
     public Type type;
+    /**
+     * The record type code as it appeared on the wire, which is
+     * kept even if type is OTHER.
+     */
+    public int typeCode;
     public int ttl;
-    public byte[] rdata;
-    public String rdataString;
+    /**
+     * The mDNS cache-flush bit: this record replaces any others of
+     * the same name and type (RFC 6762 section 10.2).
+     */
+    public boolean cacheFlush;
+    /**
+     * The raw rdata.  When parsed this is a read-only view into
+     * the packet buffer; see {@link #detach()}.
+     */
+    public ByteBuffer rdata;
+    public DNSRdata data;
+    // formatted on first use, never while parsing
+    private String rdataString;
 
     public DNSAnswer(DNSBuffer buffer) {
         parse(buffer);
     }
 
+    /**
+     * Construct a record to be sent.
+     */
+    public DNSAnswer(DNSName name, int typeCode, int ttl, DNSRdata data) {
+        this.name = name;
+        this.type = Type.getType(typeCode);
+        this.typeCode = typeCode;
+        this.ttl = ttl;
+        this.data = data;
+    }
+
+    /**
+     * Return a copy of this record with a different TTL and the
+     * cache-flush bit clear, e.g. to send as a known answer.
+     */
+    public DNSAnswer withTtl(int ttl) {
+        DNSAnswer answer = new DNSAnswer(name, typeCode, ttl, data);
+        answer.rdata = rdata;
+        return answer;
+    }
+
     @Override
     public int length() {
-        // TODO: implement
-        return 0;
+        return name.length() + 10 + rdataLength(null, 0);
+    }
+
+    @Override
+    public int length(DNSNameCompressor compressor, int offset) {
+        int nameLength = compressor.measure(name, offset);
+        return nameLength + 10 + rdataLength(compressor, offset + nameLength + 10);
     }
 
     @Override
     public void serialize(DNSBuffer buffer) {
-        // TODO: implement
+        buffer.writeName(name);
+        buffer.checkRemaining(10);
+        buffer.writeShort(typeCode);
+        buffer.writeShort(cacheFlush ? 0x8001 : 1); // class IN
+        buffer.writeInteger(ttl);
+
+        // write the rdata, then go back and fill in its length
+        int lengthOffset = buffer.offset;
+        buffer.writeShort(0);
+        if (isWrittenRaw()) {
+            buffer.checkRemaining(rdata.remaining());
+            buffer.writeBytes(rdata);
+        } else {
+            data.serialize(buffer);
+        }
+        int end = buffer.offset;
+        buffer.offset = lengthOffset;
+        buffer.writeShort(end - lengthOffset - 2);
+        buffer.offset = end;
+    }
+
+    private int rdataLength(DNSNameCompressor compressor, int offset) {
+        return isWrittenRaw() ? rdata.remaining() : data.length(compressor, offset);
+    }
+
+    // received rdata without names is written back byte for byte, so
+    // that e.g. binary TXT values survive; rdata with names is written
+    // from its decoded form, so the names are compressed against the
+    // message being written
+    private boolean isWrittenRaw() {
+        return rdata != null && !data.containsNames();
     }
 
     private void parse(DNSBuffer buffer) {
-        name = buffer.readName();
-        type = Type.getType(buffer.readShort());
+        name = buffer.readDNSName();
+        typeCode = buffer.readShortAsInt();
+        type = Type.getType(typeCode);
 
         // the most significant bit of the rrclass is special
         // in Multicast DNS -- it is used as a "cache flush" bit,
         // and only the least significant 15 bits should be used
         // as the class.
         // see:
-        //   http://tools.ietf.org/html/draft-cheshire-dnsext-multicastdns-05
-        //   section 11.3
+        //   RFC 6762 section 10.2
         int aclass = buffer.readShortAsInt();
-        //boolean cacheFlush = ((aclass & 0x8000) != 0);
+        cacheFlush = ((aclass & 0x8000) != 0);
         aclass = aclass & 0x7FFF;
-        if (aclass != 1) {
+        // (an EDNS OPT pseudo-record uses the class field for its
+        // UDP payload size)
+        if (aclass != 1 && typeCode != Type.OPT.qtype) {
             throw new DNSException("only class IN supported.  (got " + aclass + ")");
         }
 
         ttl = buffer.readInteger();
-        rdata = buffer.readRdata();
-
-        if (type.equals(Type.A) || type.equals(Type.AAAA)) {
-            try {
-                rdataString = InetAddress.getByAddress(rdata).toString();
-            } catch (UnknownHostException e) {
-                throw new DNSException("problem parsing rdata");
-            }
-        } else if (type.equals(Type.TXT)) {
-            rdataString = "";
-            for (int i = 0; i < rdata.length; ) {
-                int length = rdata[i++];
-                rdataString += DNSBuffer.bytesToString(rdata, i, length);
-                i += length;
-                if (i != rdata.length) {
-                    rdataString += " // ";
-                }
-            }
-        } else if (type.equals(Type.PTR)) {
-            // rewind the buffer to the beginning of the
-            // name (just after the 16-bit name-length field)
-            // and reparse the name to allow for compression
-            // offsets.
-            int oldoffset = buffer.offset;
-            buffer.offset -= rdata.length;
-            rdataString = buffer.readName();
-            if (oldoffset != buffer.offset) {
-                throw new DNSException("bad PTR rdata");
-            }
-        } else {
-            rdataString = "data[" + rdata.length + "]";
+        rdata = buffer.readRdataSlice();
+
+        // decode the rdata in place with the decoder for the type
+        int end = buffer.offset;
+        buffer.offset = end - rdata.remaining();
+        data = DNSRdata.decode(typeCode, buffer, rdata.remaining());
+        buffer.offset = end;
+    }
+
+    /**
+     * Replace the rdata view with a private copy, so this answer
+     * stays valid after the packet buffer it was parsed from is
+     * reused.  Answers built locally have no view and are left alone.
+     */
+    public void detach() {
+        if (rdata != null) {
+            rdata = DNSBuffer.copyOf(rdata);
         }
+    }
 
+    /**
+     * Check whether another answer is the same resource record: the
+     * same name, type and rdata, whatever the TTL.  Rdata with names
+     * is compared decoded, so differences in name compression do not
+     * matter; other received rdata is compared byte for byte.
+     */
+    public boolean isSameRecord(DNSAnswer other) {
+        if (typeCode != other.typeCode || !name.equals(other.name)) {
+            return false;
+        }
+        if (rdata != null && other.rdata != null && !data.containsNames()) {
+            return rdata.equals(other.rdata);
+        }
+        return data.equals(other.data);
     }
 
     public String toString() {
@@ -88,6 +162,9 @@ public class DNSAnswer extends DNSComponent {
     }
 
     public String getRdataString() {
+        if (rdataString == null) {
+            rdataString = data.toString();
+        }
         return rdataString;
     }
 }
\ No newline at end of file
@@ -1,41 +1,86 @@
 package mdns.android.com.mdns.dns;
 
 import java.io.UnsupportedEncodingException;
-import java.util.Stack;
+import java.nio.ByteBuffer;
 
 /**
  * Encapsulate a byte buffer which maintains its own
  * traversal state and provides several utility methods
  * useful for consuming or producing the binary fields.
+ * <p/>
+ * The bytes may live in a plain array or in any (heap or
+ * direct) {@link ByteBuffer}.  All access is done with absolute
+ * indexes, so the position and limit of a wrapped ByteBuffer are
+ * never touched and the same buffer can be parsed in place
+ * straight out of a channel receive.
  */
 public class DNSBuffer {
 
+    /**
+     * The most compression pointers followed while reading one name.
+     */
+    public static final int MAX_COMPRESSION_POINTERS = 32;
+
+    /**
+     * The backing array, or null if the data does not live in
+     * an array starting at index 0 (e.g. a direct ByteBuffer).
+     */
     public byte[] bytes;
+    public ByteBuffer data;
     public int start;
     public int length;
     public int offset;
+    // the view of the array last wrapped, kept for the next packet
+    // read from the same array
+    private ByteBuffer arrayView;
 
     public DNSBuffer(int length) {
-        bytes = new byte[length];
-        start = 0;
-        this.length = length;
-        offset = 0;
+        this(new byte[length]);
     }
 
     public DNSBuffer(byte[] bytes) {
-        this.bytes = bytes;
-        this.start = 0;
-        this.length = bytes.length;
-        this.offset = 0;
+        this(bytes, 0, bytes.length);
     }
 
     public DNSBuffer(byte[] bytes, int start, int length) {
+        wrap(bytes, start, length);
+    }
+
+    /**
+     * Wrap the remaining bytes of a ByteBuffer without copying.
+     */
+    public DNSBuffer(ByteBuffer data) {
+        wrap(data);
+    }
+
+    /**
+     * Switch to a range of another array, so that one DNSBuffer and
+     * its scratch space can read packet after packet.
+     */
+    public void wrap(byte[] bytes, int start, int length) {
+        if (arrayView == null || arrayView.array() != bytes) {
+            arrayView = ByteBuffer.wrap(bytes);
+        }
         this.bytes = bytes;
+        this.data = arrayView;
         this.start = start;
         this.length = length;
         this.offset = start;
     }
 
+    /**
+     * Switch to the remaining bytes of another ByteBuffer, so that
+     * one DNSBuffer and its scratch space can read packet after
+     * packet.
+     */
+    public void wrap(ByteBuffer data) {
+        this.data = data;
+        this.bytes = (data.hasArray() && data.arrayOffset() == 0) ? data.array() : null;
+        this.start = data.position();
+        this.length = data.remaining();
+        this.offset = start;
+    }
+
     //
 
     public void reset() {
@@ -55,92 +100,224 @@ public class DNSBuffer {
     // read methods
 
     public byte readByte() {
-        return bytes[offset++];
+        return data.get(offset++);
     }
 
     public byte[] readBytes(int numBytes) {
         byte[] ba = new byte[numBytes];
-        System.arraycopy(bytes, offset, ba, 0, numBytes);
+        copyBytes(data, offset, ba, 0, numBytes);
         offset += numBytes;
         return ba;
     }
 
+    /**
+     * Return a read-only view of the next numBytes bytes without
+     * copying them.  The view shares content with this buffer, so
+     * it is only valid for as long as the underlying bytes are not
+     * reused.
+     */
+    public ByteBuffer readSlice(int numBytes) {
+        ByteBuffer slice = data.duplicate();
+        slice.limit(offset + numBytes);
+        slice.position(offset);
+        offset += numBytes;
+        return slice.slice().asReadOnlyBuffer();
+    }
+
     public short readShort() {
-        byte hi = bytes[offset++];
-        byte lo = bytes[offset++];
+        byte hi = data.get(offset++);
+        byte lo = data.get(offset++);
         return (short) ((hi & 0xFF) << 8 | (lo & 0xFF));
     }
 
     public int readShortAsInt() {
-        byte hi = bytes[offset++];
-        byte lo = bytes[offset++];
+        byte hi = data.get(offset++);
+        byte lo = data.get(offset++);
         return (int) ((hi & 0xFF) << 8 | (lo & 0xFF));
     }
 
     public int readInteger() {
-        byte b1 = bytes[offset++];
-        byte b2 = bytes[offset++];
-        byte b3 = bytes[offset++];
-        byte b4 = bytes[offset++];
+        byte b1 = data.get(offset++);
+        byte b2 = data.get(offset++);
+        byte b3 = data.get(offset++);
+        byte b4 = data.get(offset++);
         return ((b1 & 0xFF) << 24 | (b2 & 0xFF) << 16 | (b3 & 0xFF) << 8 | (b4 & 0xFF));
     }
 
     public String readString(int numBytes) {
-        String string = bytesToString(bytes, offset, numBytes);
+        String string = bytesToString(data, offset, numBytes);
         offset += numBytes;
         return string;
     }
 
-    public String readLabel() {
-        byte lengthByte = readByte();
-        byte hiBits = (byte) ((lengthByte >>> 6) & 0x03);
-        if (hiBits == 3) {
-            // handle compressed names
-            short compressionOffset =
-                    (short) ((short) ((lengthByte & 0x3F) << 8) | readByte());
-            pushOffset(start + compressionOffset);
-            return readLabel();
-        } else if (hiBits > 0) {
-            throw new DNSException("unknown label compression format");
+    public String readName() {
+        return readDNSName().toString();
+    }
+
+    /**
+     * Read a name, following any compression pointers, into its
+     * uncompressed wire form.
+     * <p/>
+     * The labels are located and hashed in place first; if the
+     * name cache already holds a name with the same bytes, that
+     * instance is returned and nothing is allocated.
+     */
+    public DNSName readDNSName() {
+        int labelCount = findLabels();
+        int wireLength = 1;
+        int hash = 0;
+        for (int l = labelCount - 1; l >= 0; l--) {
+            int labelOffset = labelScratch[l];
+            int labelLength = data.get(labelOffset) & 0xFF;
+            wireLength += labelLength + 1;
+            hash = DNSName.combineHash(hash, DNSName.labelHash(data, labelOffset + 1, labelLength));
         }
-        int length = (int) lengthByte;
-        if ((length == 0) && (!offsetStack.isEmpty())) {
-            // TODO: it turns out that the compression scheme is not a stack!  clean this up...
-            while (!offsetStack.isEmpty()) {
-                popOffset();
+
+        if (nameCache != null) {
+            DNSName name = nameCache.lookup(data, labelScratch, labelCount, wireLength, hash);
+            if (name != null) {
+                return name;
             }
-            return null;
         }
 
-        if (length > 63) {
-            throw new DNSException("label length > 63");
-        } else if (length == 0) {
-            return null;
+        byte[] wire = new byte[wireLength];
+        int length = 0;
+        for (int l = 0; l < labelCount; l++) {
+            int labelOffset = labelScratch[l];
+            int labelLength = data.get(labelOffset) & 0xFF;
+            copyBytes(data, labelOffset, wire, length, labelLength + 1);
+            length += labelLength + 1;
         }
-        return readString(length);
-    }
-
-    public String readName() {
-        StringBuilder sb = new StringBuilder();
-        boolean needDot = false;
-        String label;
-        while ((label = readLabel()) != null) {
-            if (needDot) {
-                sb.append('.');
-            } else {
-                needDot = true;
+        DNSName name = new DNSName(wire);
+        if (nameCache != null) {
+            nameCache.put(name);
+        }
+        return name;
+    }
+
+    /**
+     * Hash the name at the current offset in place, following
+     * compression pointers, and leave the offset just past the name.
+     * Nothing is allocated.
+     *
+     * @param hashes receives the hash of the suffix starting at each
+     *               label, as {@link DNSName#suffixHash(int)} would
+     *               return it; it needs room for labelCount + 1
+     *               entries (128 is always enough)
+     * @return the number of labels
+     */
+    public int readNameHashes(int[] hashes) {
+        int labelCount = findLabels();
+        int hash = 0;
+        hashes[labelCount] = 0;
+        for (int l = labelCount - 1; l >= 0; l--) {
+            int labelOffset = labelScratch[l];
+            hash = DNSName.combineHash(hash, DNSName.labelHash(data, labelOffset + 1, data.get(labelOffset) & 0xFF));
+            hashes[l] = hash;
+        }
+        return labelCount;
+    }
+
+    /**
+     * Locate the labels of the name at the current offset, following
+     * compression pointers, and leave the offset just past the name.
+     * <p/>
+     * The cost is bounded no matter what the packet contains: a
+     * pointer must refer to an earlier offset than the pointer
+     * itself, at most {@link #MAX_COMPRESSION_POINTERS} pointers are
+     * followed, and the decoded name may not exceed
+     * {@link DNSName#MAX_LENGTH} bytes.  The only state kept while
+     * following pointers is the offset to return to.
+     *
+     * @return the number of labels, whose offsets are in labelScratch
+     */
+    private int findLabels() {
+        int count = 0;
+        int length = 1;
+        int end = -1;
+        int pointers = 0;
+        int limit = start + this.length;
+        while (true) {
+            if (offset >= limit) {
+                throw new DNSException("name runs past end of message");
+            }
+            byte lengthByte = readByte();
+            byte hiBits = (byte) ((lengthByte >>> 6) & 0x03);
+            if (hiBits == 3) {
+                // handle compressed names
+                if (offset >= limit) {
+                    throw new DNSException("name runs past end of message");
+                }
+                int pointerOffset = offset - 1;
+                int target = start + ((lengthByte & 0x3F) << 8 | (readByte() & 0xFF));
+                if (target >= pointerOffset) {
+                    throw new DNSException("compression pointer does not point backward");
+                }
+                if (++pointers > MAX_COMPRESSION_POINTERS) {
+                    throw new DNSException("too many compression pointers");
+                }
+                if (end < 0) {
+                    end = offset;
+                }
+                offset = target;
+                continue;
+            } else if (hiBits > 0) {
+                throw new DNSException("unknown label compression format");
+            }
+            int labelLength = (int) lengthByte;
+            if (labelLength == 0) {
+                break;
             }
-            sb.append(label);
+            length += labelLength + 1;
+            if (length > DNSName.MAX_LENGTH) {
+                throw new DNSException("name length > " + DNSName.MAX_LENGTH);
+            }
+            if (offset + labelLength > limit) {
+                throw new DNSException("name runs past end of message");
+            }
+            labelScratch[count++] = offset - 1;
+            offset += labelLength;
+        }
+        if (end >= 0) {
+            offset = end;
+        }
+        return count;
+    }
+
+    /**
+     * Advance past a name without decoding it.  A compression
+     * pointer ends the name as it appears at this position, so it
+     * is never followed.
+     */
+    public void skipName() {
+        while (true) {
+            int lengthByte = readByte() & 0xFF;
+            if ((lengthByte & 0xC0) == 0xC0) {
+                offset++;
+                return;
+            } else if ((lengthByte & 0xC0) != 0) {
+                throw new DNSException("unknown label compression format");
+            } else if (lengthByte == 0) {
+                return;
+            }
+            offset += lengthByte;
         }
-        return sb.toString();
     }
 
     public byte[] readRdata() {
-        int length = (int) readShort();
+        int length = readShortAsInt();
         byte[] rdata = readBytes(length);
         return rdata;
     }
 
+    /**
+     * Read the rdata as a view into this buffer (see {@link #readSlice(int)}).
+     */
+    public ByteBuffer readRdataSlice() {
+        int length = readShortAsInt();
+        return readSlice(length);
+    }
+
     public void rewind(int amount) {
         offset = offset - amount;
     }
@@ -148,24 +325,42 @@ public class DNSBuffer {
     // write methods
 
     public void writeByte(byte b) {
-        bytes[offset++] = b;
+        data.put(offset++, b);
     }
 
     public void writeBytes(byte[] ba) {
-        System.arraycopy(ba, 0, bytes, offset, ba.length);
-        offset += ba.length;
+        writeBytes(ba, 0, ba.length);
+    }
+
+    public void writeBytes(byte[] ba, int baOffset, int numBytes) {
+        if (bytes != null) {
+            System.arraycopy(ba, baOffset, bytes, offset, numBytes);
+        } else {
+            for (int i = 0; i < numBytes; i++) {
+                data.put(offset + i, ba[baOffset + i]);
+            }
+        }
+        offset += numBytes;
+    }
+
+    public void writeBytes(ByteBuffer ba) {
+        int length = ba.remaining();
+        for (int i = 0; i < length; i++) {
+            data.put(offset + i, ba.get(ba.position() + i));
+        }
+        offset += length;
     }
 
     public void writeShort(short s) {
-        bytes[offset++] = (byte) ((s >>> 8) & 0xFF);
-        bytes[offset++] = (byte) (s & 0xFF);
+        data.put(offset++, (byte) ((s >>> 8) & 0xFF));
+        data.put(offset++, (byte) (s & 0xFF));
     }
 
     public void writeInteger(int i) {
-        bytes[offset++] = (byte) ((i >>> 24) & 0xFF);
-        bytes[offset++] = (byte) ((i >>> 16) & 0xFF);
-        bytes[offset++] = (byte) ((i >>> 8) & 0xFF);
-        bytes[offset++] = (byte) (i & 0xFF);
+        data.put(offset++, (byte) ((i >>> 24) & 0xFF));
+        data.put(offset++, (byte) ((i >>> 16) & 0xFF));
+        data.put(offset++, (byte) ((i >>> 8) & 0xFF));
+        data.put(offset++, (byte) (i & 0xFF));
     }
 
     public void writeShort(int i) {
@@ -173,25 +368,32 @@ public class DNSBuffer {
     }
 
     public void writeString(String string) {
-        byte[] stringBytes = stringToBytes(string);
-        System.arraycopy(stringBytes, 0, bytes, offset, stringBytes.length);
-        offset += stringBytes.length;
+        writeBytes(stringToBytes(string));
     }
 
     public void writeLabel(String label) {
-        if (label.length() > 63) {
+        byte[] labelBytes = stringToBytes(label);
+        if (labelBytes.length > 63) {
             throw new DNSException("label length > 63");
         }
-        writeByte((byte) lengthInBytes(label));
-        writeString(label);
+        writeByte((byte) labelBytes.length);
+        writeBytes(labelBytes);
     }
 
     public void writeName(String name) {
-        String[] labels = nameToLabels(name);
-        for (int i = 0; i < labels.length; i++) {
-            writeLabel(labels[i]);
+        writeName(DNSName.of(name));
+    }
+
+    /**
+     * Write a name, compressing it if a name compressor is set.
+     */
+    public void writeName(DNSName name) {
+        if (nameCompressor != null) {
+            nameCompressor.write(this, name);
+        } else {
+            checkRemaining(name.length());
+            name.writeTo(this);
         }
-        writeByte((byte) 0); // terminating zero length
     }
 
     public void writeRdata(byte[] rdata) {
@@ -199,15 +401,15 @@ public class DNSBuffer {
         writeBytes(rdata);
     }
 
+    public void writeRdata(ByteBuffer rdata) {
+        writeShort((short) rdata.remaining());
+        writeBytes(rdata);
+    }
+
     // public utility methods
 
     public static int nameByteLength(String name) {
-        int length = 0;
-        for (String label : nameToLabels(name)) {
-            length++; // label-length octet
-            length += stringToBytes(label).length; // string length in bytes
-        }
-        return length;
+        return DNSName.of(name).length() - 1; // not counting the terminating zero
     }
 
     public static byte[] stringToBytes(String string) {
@@ -230,41 +432,60 @@ public class DNSBuffer {
         return string;
     }
 
-    // support for offset stacks, used to parse compressed labels/names.
-
-    private Stack<Integer> offsetStack = new Stack<Integer>();
-
-    private void pushOffset(int newOffset) {
-        offsetStack.push(offset);
-        offset = newOffset;
+    public static String bytesToString(ByteBuffer data, int offset, int length) {
+        if (data.hasArray()) {
+            return bytesToString(data.array(), data.arrayOffset() + offset, length);
+        }
+        byte[] ba = new byte[length];
+        copyBytes(data, offset, ba, 0, length);
+        return bytesToString(ba, 0, length);
+    }
+
+    /**
+     * Return a heap copy of the remaining bytes of a buffer, for
+     * callers that need to keep data beyond the life of a view.
+     */
+    public static ByteBuffer copyOf(ByteBuffer data) {
+        byte[] ba = new byte[data.remaining()];
+        copyBytes(data, data.position(), ba, 0, ba.length);
+        return ByteBuffer.wrap(ba).asReadOnlyBuffer();
+    }
+
+    private static void copyBytes(ByteBuffer data, int offset, byte[] ba, int baOffset, int length) {
+        if (data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + offset, ba, baOffset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                ba[baOffset + i] = data.get(offset + i);
+            }
+        }
     }
 
-    private void popOffset() {
-        offset = offsetStack.pop();
-    }
+    // support for reading names
 
-    // private static utility methods
+    private DNSNameCache nameCache = DNSNameCache.getDefault();
+    private final int[] labelScratch = new int[DNSName.MAX_LENGTH / 2];
 
-    private static String[] nameToLabels(String name) {
-        return name.split("\\.");
+    /**
+     * Set the cache used to intern names read from this buffer, or
+     * null to decode every name afresh.
+     */
+    public void setNameCache(DNSNameCache nameCache) {
+        this.nameCache = nameCache;
     }
 
-    // uncomment if needed
-    /*
-    private static String labelsToName(String[] labels) {
-        StringBuilder sb = new StringBuilder();
-        for (int i=0; i<labels.length; i++) {
-            sb.append(labels[i]);
-            if (i != (labels.length-1)) {
-                sb.append('.');
-            }
-        }
-        return sb.toString();
-    }
-    */
+    // support for writing names
+
+    private DNSNameCompressor nameCompressor;
 
-    private static int lengthInBytes(String string) {
-        return stringToBytes(string).length;
+    /**
+     * Set the table used to compress names written to this buffer,
+     * or null to write every name in full.  Offsets in the table are
+     * relative to the start of the message being written (see
+     * {@link DNSNameCompressor#reset(int)}).
+     */
+    public void setNameCompressor(DNSNameCompressor nameCompressor) {
+        this.nameCompressor = nameCompressor;
     }
 
 }
@@ -7,20 +7,42 @@ public abstract class DNSComponent {
         NS(2),
         CNAME(5),
         PTR(12),
+        HINFO(13),
         MX(15),
         TXT(16),
         AAAA(28),
+        SRV(33),
+        OPT(41),
+        NSEC(47),
         ANY(255),
         OTHER(0);
         public int qtype;
 
+        // every defined code is below 256; anything else is OTHER
+        private static final Type[] byCode = new Type[256];
+
+        static {
+            for (Type type : values()) {
+                if (type != OTHER) {
+                    byCode[type.qtype] = type;
+                }
+            }
+        }
+
         Type(int qtype) {
             this.qtype = qtype;
         }
 
+        /**
+         * Look up a 16-bit type code in constant time.  Codes that
+         * are not listed here map to OTHER; components keep the
+         * original code alongside.
+         */
         public static Type getType(int qtype) {
-            for (Type type : Type.values()) {
-                if (type.qtype == qtype) {
+            qtype &= 0xFFFF;
+            if (qtype < byCode.length) {
+                Type type = byCode[qtype];
+                if (type != null) {
                     return type;
                 }
             }
@@ -30,6 +52,16 @@ public abstract class DNSComponent {
 
     public abstract int length();
 
+    /**
+     * Return the length of this component when written at the
+     * given message offset with name compression, recording its
+     * names in the compressor.  Components without names are the
+     * same length either way.
+     */
+    public int length(DNSNameCompressor compressor, int offset) {
+        return length();
+    }
+
     public abstract void serialize(DNSBuffer buffer);
 
 }
@@ -1,5 +1,7 @@
 package mdns.android.com.mdns.dns;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -14,9 +16,19 @@ public class DNSMessage {
 
     private static short nextMessageId = 0;
 
+    public static final int FLAG_RESPONSE = 0x8000;
+    public static final int FLAG_AUTHORITATIVE = 0x0400;
+    public static final int FLAG_TRUNCATED = 0x0200;
+
     private short messageId;
+    private int flags;
     private LinkedList<DNSQuestion> questions = new LinkedList<DNSQuestion>();
     private LinkedList<DNSAnswer> answers = new LinkedList<DNSAnswer>();
+    private LinkedList<DNSAnswer> authorities = new LinkedList<DNSAnswer>();
+    private LinkedList<DNSAnswer> additionals = new LinkedList<DNSAnswer>();
+    // created on first use, since most parsed messages are never
+    // measured or written
+    private DNSNameCompressor compressor;
 
     /**
      * Construct a DNS host query
@@ -26,65 +38,258 @@ public class DNSMessage {
         questions.add(new DNSQuestion(DNSQuestion.Type.ANY, hostname));
     }
 
+    /**
+     * Construct an empty message, to be filled in by the builders.
+     */
+    private DNSMessage() {
+        messageId = nextMessageId++;
+    }
+
+    /**
+     * Construct a DNS host query carrying known answers; see
+     * {@link #query(List, List, int)}.
+     */
+    public static List<DNSMessage> query(String hostname, List<DNSAnswer> knownAnswers, int maxLength) {
+        List<DNSQuestion> questions = new ArrayList<DNSQuestion>(1);
+        questions.add(new DNSQuestion(DNSQuestion.Type.ANY, hostname));
+        return query(questions, knownAnswers, maxLength);
+    }
+
+    /**
+     * Construct the packets of a query that carries the answers we
+     * already hold in its answer section (RFC 6762 section 7.1), so
+     * responders stay quiet about them.
+     * <p/>
+     * The first message holds the questions and as many known answers
+     * as fit in maxLength bytes; the remaining known answers follow in
+     * further messages with no questions.  Every message but the last
+     * has the TC bit set, telling responders that more known answers
+     * are coming (section 7.2).  A known answer too large for any
+     * packet is left out.
+     */
+    public static List<DNSMessage> query(List<DNSQuestion> questions, List<DNSAnswer> knownAnswers, int maxLength) {
+        List<DNSMessage> messages = new ArrayList<DNSMessage>();
+        DNSNameCompressor sizer = new DNSNameCompressor();
+
+        DNSMessage message = new DNSMessage();
+        message.questions.addAll(questions);
+        int length = 12; // header length
+        for (DNSQuestion q : questions) {
+            length += q.length(sizer, length);
+        }
+
+        DNSNameCompressor aloneSizer = new DNSNameCompressor();
+        for (DNSAnswer answer : knownAnswers) {
+            // an answer too large even for a packet of its own is left
+            // out before it can end the current message
+            aloneSizer.reset();
+            if (12 + answer.length(aloneSizer, 12) > maxLength) {
+                continue;
+            }
+
+            int answerLength = answer.length(sizer, length);
+            if (length + answerLength > maxLength) {
+                // TC is set only now that another message follows
+                message.flags |= FLAG_TRUNCATED;
+                messages.add(message);
+
+                message = new DNSMessage();
+                sizer.reset();
+                length = 12;
+                answerLength = answer.length(sizer, length);
+            }
+            message.answers.add(answer);
+            length += answerLength;
+        }
+        if (!message.questions.isEmpty() || !message.answers.isEmpty()) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
     /**
      * Parse the supplied packet as a DNS message.
      */
     public DNSMessage(byte[] packet) {
-        parse(packet, 0, packet.length);
+        parse(new DNSBuffer(packet));
     }
 
     /**
      * Parse the supplied packet as a DNS message.
      */
     public DNSMessage(byte[] packet, int offset, int length) {
-        parse(packet, offset, length);
+        parse(new DNSBuffer(packet, offset, length));
     }
 
+    /**
+     * Parse the remaining bytes of the supplied buffer as a DNS
+     * message, in place.  Answer rdata will refer to the buffer
+     * until {@link #detach()} is called.
+     */
+    public DNSMessage(ByteBuffer packet) {
+        parse(new DNSBuffer(packet));
+    }
+
+    /**
+     * Return the exact serialized length of this message, with
+     * names compressed.
+     */
     public int length() {
+        DNSNameCompressor compressor = getCompressor();
+        compressor.reset();
         int length = 12; // header length
         for (DNSQuestion q : questions) {
-            length += q.length();
+            length += q.length(compressor, length);
         }
         for (DNSAnswer a : answers) {
-            length += a.length();
+            length += a.length(compressor, length);
+        }
+        for (DNSAnswer a : authorities) {
+            length += a.length(compressor, length);
+        }
+        for (DNSAnswer a : additionals) {
+            length += a.length(compressor, length);
         }
         return length;
     }
 
     public byte[] serialize() {
         DNSBuffer buffer = new DNSBuffer(length());
+        serialize(buffer);
+        return buffer.bytes;
+    }
 
-        // header
-        buffer.writeShort(messageId);
-        buffer.writeShort(0); // flags
-        buffer.writeShort(questions.size()); // qdcount
-        buffer.writeShort(answers.size()); // ancount
-        buffer.writeShort(0); // nscount
-        buffer.writeShort(0); // arcount
+    /**
+     * Write this message into a caller-owned buffer at its current
+     * offset, which is advanced past the message.
+     *
+     * @return the number of bytes written
+     * @throws DNSException if the message does not fit
+     */
+    public int serialize(DNSBuffer buffer) {
+        int begin = buffer.offset;
+        DNSNameCompressor compressor = getCompressor();
+        compressor.reset(begin);
+        buffer.setNameCompressor(compressor);
+        try {
+            // header
+            buffer.checkRemaining(12);
+            buffer.writeShort(messageId);
+            buffer.writeShort(flags);
+            buffer.writeShort(questions.size()); // qdcount
+            buffer.writeShort(answers.size()); // ancount
+            buffer.writeShort(authorities.size()); // nscount
+            buffer.writeShort(additionals.size()); // arcount
 
-        // questions
-        for (DNSQuestion question : questions) {
-            question.serialize(buffer);
+            // questions
+            for (DNSQuestion question : questions) {
+                question.serialize(buffer);
+            }
+
+            // answers
+            for (DNSAnswer answer : answers) {
+                answer.serialize(buffer);
+            }
+
+            // authority and additional records
+            for (DNSAnswer answer : authorities) {
+                answer.serialize(buffer);
+            }
+            for (DNSAnswer answer : additionals) {
+                answer.serialize(buffer);
+            }
+        } finally {
+            buffer.setNameCompressor(null);
         }
+        return buffer.offset - begin;
+    }
 
-        // answers
-        for (DNSAnswer answer : answers) {
-            answer.serialize(buffer);
+    private DNSNameCompressor getCompressor() {
+        if (compressor == null) {
+            compressor = new DNSNameCompressor();
         }
+        return compressor;
+    }
 
-        return buffer.bytes;
+    /**
+     * Write this message into a caller-owned ByteBuffer at its
+     * position, which is advanced past the message.
+     *
+     * @return the number of bytes written
+     * @throws DNSException if the message does not fit
+     */
+    public int serialize(ByteBuffer target) {
+        int length = serialize(new DNSBuffer(target));
+        target.position(target.position() + length);
+        return length;
     }
 
-    private void parse(byte[] packet, int offset, int length) {
-        DNSBuffer buffer = new DNSBuffer(packet, offset, length);
+    /**
+     * Copy any data that still refers to the parsed packet, so the
+     * packet buffer can be reused.
+     */
+    public void detach() {
+        for (DNSAnswer a : answers) {
+            a.detach();
+        }
+        for (DNSAnswer a : authorities) {
+            a.detach();
+        }
+        for (DNSAnswer a : additionals) {
+            a.detach();
+        }
+    }
 
+    public short getMessageId() {
+        return messageId;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isResponse() {
+        return (flags & FLAG_RESPONSE) != 0;
+    }
+
+    public List<DNSQuestion> getQuestions() {
+        return questions;
+    }
+
+    public List<DNSAnswer> getAnswers() {
+        return answers;
+    }
+
+    public List<DNSAnswer> getAuthorities() {
+        return authorities;
+    }
+
+    public List<DNSAnswer> getAdditionals() {
+        return additionals;
+    }
+
+    /**
+     * Return the records of the answer, authority and additional
+     * sections, in that order.  Responders put the SRV, TXT and
+     * address records that go with an answer in the additional
+     * section, so resolution should look at all of them.
+     */
+    public List<DNSAnswer> getRecords() {
+        List<DNSAnswer> records = new ArrayList<DNSAnswer>(answers.size() + authorities.size() + additionals.size());
+        records.addAll(answers);
+        records.addAll(authorities);
+        records.addAll(additionals);
+        return records;
+    }
+
+    private void parse(DNSBuffer buffer) {
         // header
         messageId = buffer.readShort();
-        buffer.readShort(); // flags
-        int qdcount = buffer.readShort();
-        int ancount = buffer.readShort();
-        buffer.readShort(); // nscount
-        buffer.readShort(); // arcount
+        flags = buffer.readShortAsInt();
+        int qdcount = buffer.readShortAsInt();
+        int ancount = buffer.readShortAsInt();
+        int nscount = buffer.readShortAsInt();
+        int arcount = buffer.readShortAsInt();
 
         // questions
         questions.clear();
@@ -97,6 +302,18 @@ public class DNSMessage {
         for (int i = 0; i < ancount; i++) {
             answers.add(new DNSAnswer(buffer));
         }
+
+        // authority records
+        authorities.clear();
+        for (int i = 0; i < nscount; i++) {
+            authorities.add(new DNSAnswer(buffer));
+        }
+
+        // additional records
+        additionals.clear();
+        for (int i = 0; i < arcount; i++) {
+            additionals.add(new DNSAnswer(buffer));
+        }
     }
 
     public String toString() {
@@ -107,15 +324,16 @@ public class DNSMessage {
             sb.append(q.toString() + "\n");
         }
 
-        // group answers by name
+        // group records by name
         SortedMap<String, List<DNSAnswer>> answersByName = new TreeMap<String, List<DNSAnswer>>();
-        for (DNSAnswer a : answers) {
+        for (DNSAnswer a : getRecords()) {
             List<DNSAnswer> list;
-            if (answersByName.containsKey(a.name)) {
-                list = answersByName.get(a.name);
+            String name = a.name.toString();
+            if (answersByName.containsKey(name)) {
+                list = answersByName.get(name);
             } else {
                 list = new LinkedList<DNSAnswer>();
-                answersByName.put(a.name, list);
+                answersByName.put(name, list);
             }
             list.add(a);
         }
@@ -0,0 +1,33 @@
+package mdns.android.com.mdns.dns;
+
+/**
+ * Receives the parts of a DNS message from a {@link DNSMessageWalker}
+ * as they are encountered in the packet.
+ * <p/>
+ * Only primitive fields and buffer positions are passed, so no
+ * objects are allocated per record.  Names are given as the offset
+ * and wire length of the name as it appears at that position (which
+ * may end in a compression pointer); use {@link DNSBuffer#readName()}
+ * after seeking to the offset to decode one.  The buffer is only
+ * valid for the duration of the callback.
+ */
+public interface DNSMessageVisitor {
+
+    int SECTION_ANSWER = 1;
+    int SECTION_AUTHORITY = 2;
+    int SECTION_ADDITIONAL = 3;
+
+    void onHeader(int messageId, int flags, int qdcount, int ancount, int nscount, int arcount);
+
+    void onQuestion(DNSBuffer buffer, int nameOffset, int nameLength, int qtype, int qclass);
+
+    /**
+     * Called for each resource record.  The cache-flush bit is
+     * left in the rrclass.
+     */
+    void onRecord(DNSBuffer buffer, int section, int nameOffset, int nameLength,
+                  int rrtype, int rrclass, int ttl, int rdataOffset, int rdataLength);
+
+    void onEnd();
+
+}
@@ -0,0 +1,101 @@
+package mdns.android.com.mdns.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walk a DNS message in a single pass, reporting each part to a
+ * {@link DNSMessageVisitor} without building any objects.
+ */
+public class DNSMessageWalker {
+
+    // each thread's spare buffer, taken while a walk is running so
+    // that a walk started from a visitor gets a buffer of its own
+    private static final ThreadLocal<DNSBuffer> spare = new ThreadLocal<DNSBuffer>();
+
+    private DNSMessageWalker() {
+    }
+
+    public static void walk(byte[] packet, int offset, int length, DNSMessageVisitor visitor) {
+        DNSBuffer buffer = take();
+        try {
+            buffer.wrap(packet, offset, length);
+            walk(buffer, visitor);
+        } finally {
+            spare.set(buffer);
+        }
+    }
+
+    public static void walk(ByteBuffer packet, DNSMessageVisitor visitor) {
+        DNSBuffer buffer = take();
+        try {
+            buffer.wrap(packet);
+            walk(buffer, visitor);
+        } finally {
+            spare.set(buffer);
+        }
+    }
+
+    private static DNSBuffer take() {
+        DNSBuffer buffer = spare.get();
+        if (buffer == null) {
+            return new DNSBuffer(0);
+        }
+        spare.set(null);
+        return buffer;
+    }
+
+    /**
+     * Walk the message starting at the current offset of the buffer.
+     * On return the buffer offset is just past the last record.
+     */
+    public static void walk(DNSBuffer buffer, DNSMessageVisitor visitor) {
+        // header
+        buffer.checkRemaining(12);
+        int messageId = buffer.readShortAsInt();
+        int flags = buffer.readShortAsInt();
+        int qdcount = buffer.readShortAsInt();
+        int ancount = buffer.readShortAsInt();
+        int nscount = buffer.readShortAsInt();
+        int arcount = buffer.readShortAsInt();
+        visitor.onHeader(messageId, flags, qdcount, ancount, nscount, arcount);
+
+        // questions
+        for (int i = 0; i < qdcount; i++) {
+            int nameOffset = buffer.offset;
+            buffer.skipName();
+            int nameLength = buffer.offset - nameOffset;
+            buffer.checkRemaining(4);
+            int qtype = buffer.readShortAsInt();
+            int qclass = buffer.readShortAsInt();
+            int next = buffer.offset;
+            visitor.onQuestion(buffer, nameOffset, nameLength, qtype, qclass);
+            buffer.offset = next;
+        }
+
+        // records
+        walkRecords(buffer, visitor, DNSMessageVisitor.SECTION_ANSWER, ancount);
+        walkRecords(buffer, visitor, DNSMessageVisitor.SECTION_AUTHORITY, nscount);
+        walkRecords(buffer, visitor, DNSMessageVisitor.SECTION_ADDITIONAL, arcount);
+
+        visitor.onEnd();
+    }
+
+    private static void walkRecords(DNSBuffer buffer, DNSMessageVisitor visitor, int section, int count) {
+        for (int i = 0; i < count; i++) {
+            int nameOffset = buffer.offset;
+            buffer.skipName();
+            int nameLength = buffer.offset - nameOffset;
+            buffer.checkRemaining(10);
+            int rrtype = buffer.readShortAsInt();
+            int rrclass = buffer.readShortAsInt();
+            int ttl = buffer.readInteger();
+            int rdataLength = buffer.readShortAsInt();
+            int rdataOffset = buffer.offset;
+            buffer.checkRemaining(rdataLength);
+            int next = rdataOffset + rdataLength;
+            visitor.onRecord(buffer, section, nameOffset, nameLength, rrtype, rrclass, ttl, rdataOffset, rdataLength);
+            buffer.offset = next;
+        }
+    }
+
+}
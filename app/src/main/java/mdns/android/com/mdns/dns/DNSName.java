@@ -0,0 +1,284 @@
+package mdns.android.com.mdns.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A domain name held in its uncompressed wire form: a sequence of
+ * length-prefixed labels followed by a terminating zero byte.
+ * <p/>
+ * The labels are encoded once, when the name is created, so writing
+ * a name or measuring its length never splits or re-encodes a
+ * string.  Equality and hashing ignore ASCII case as DNS requires,
+ * and the hash is computed once.  The dotted string form is decoded
+ * on first use and cached.
+ */
+public final class DNSName {
+
+    public static final int MAX_LENGTH = 255;
+    public static final int MAX_LABEL_LENGTH = 63;
+
+    public static final DNSName ROOT = new DNSName(new byte[]{0});
+
+    private final byte[] wire;
+    private final int[] labelOffsets;
+    private final int[] suffixHashes;
+    private String string;
+
+    /**
+     * Create a name from trusted wire bytes (which this object
+     * takes ownership of).
+     */
+    DNSName(byte[] wire) {
+        this.wire = wire;
+
+        int count = 0;
+        for (int i = 0; wire[i] != 0; i += (wire[i] & 0xFF) + 1) {
+            count++;
+        }
+        labelOffsets = new int[count];
+        for (int i = 0, l = 0; l < count; i += (wire[i] & 0xFF) + 1) {
+            labelOffsets[l++] = i;
+        }
+
+        // hash from the last label to the first, so the hash of
+        // every suffix is available as well
+        suffixHashes = new int[count + 1];
+        int hash = 0;
+        for (int l = count - 1; l >= 0; l--) {
+            int offset = labelOffsets[l];
+            hash = combineHash(hash, labelHash(wire, offset + 1, wire[offset] & 0xFF));
+            suffixHashes[l] = hash;
+        }
+    }
+
+    /**
+     * Convert a dotted name to wire form.  A trailing dot is
+     * allowed; empty labels are not.
+     */
+    public static DNSName of(String name) {
+        int nameLength = name.length();
+        if (nameLength > 0 && name.charAt(nameLength - 1) == '.') {
+            nameLength--;
+        }
+        if (nameLength == 0) {
+            return ROOT;
+        }
+
+        byte[] buffer = new byte[MAX_LENGTH + 4];
+        int length = 0;
+        int labelStart = 0;
+        while (labelStart <= nameLength) {
+            int labelEnd = name.indexOf('.', labelStart);
+            if (labelEnd < 0 || labelEnd > nameLength) {
+                labelEnd = nameLength;
+            }
+            if (labelEnd == labelStart) {
+                throw new DNSException("empty label in name: " + name);
+            }
+
+            // most names are ASCII, and need no encoder
+            int labelLength = 0;
+            int lengthOffset = length++;
+            for (int i = labelStart; i < labelEnd; i++) {
+                char c = name.charAt(i);
+                if (c >= 0x80) {
+                    labelLength = -1;
+                    break;
+                }
+                if (length >= MAX_LENGTH) {
+                    throw new DNSException("name length > " + MAX_LENGTH);
+                }
+                buffer[length++] = (byte) c;
+                labelLength++;
+            }
+            if (labelLength < 0) {
+                byte[] labelBytes = DNSBuffer.stringToBytes(name.substring(labelStart, labelEnd));
+                labelLength = labelBytes.length;
+                length = lengthOffset + 1;
+                if (length + labelLength >= MAX_LENGTH) {
+                    throw new DNSException("name length > " + MAX_LENGTH);
+                }
+                System.arraycopy(labelBytes, 0, buffer, length, labelLength);
+                length += labelLength;
+            }
+            if (labelLength > MAX_LABEL_LENGTH) {
+                throw new DNSException("label length > " + MAX_LABEL_LENGTH);
+            }
+            buffer[lengthOffset] = (byte) labelLength;
+            labelStart = labelEnd + 1;
+        }
+        if (length >= MAX_LENGTH) {
+            throw new DNSException("name length > " + MAX_LENGTH);
+        }
+        buffer[length++] = 0;
+
+        DNSName dnsName = new DNSName(Arrays.copyOf(buffer, length));
+        if (name.length() == nameLength) {
+            dnsName.string = name;
+        }
+        return dnsName;
+    }
+
+    /**
+     * Return the length of the name in wire form, including the
+     * terminating zero.
+     */
+    public int length() {
+        return wire.length;
+    }
+
+    public int labelCount() {
+        return labelOffsets.length;
+    }
+
+    /**
+     * Return the offset of label i within the wire form.  The
+     * offset of label labelCount() is that of the terminating zero.
+     */
+    public int labelOffset(int i) {
+        return (i < labelOffsets.length) ? labelOffsets[i] : wire.length - 1;
+    }
+
+    public String getLabel(int i) {
+        int offset = labelOffsets[i];
+        return DNSBuffer.bytesToString(wire, offset + 1, wire[offset] & 0xFF);
+    }
+
+    /**
+     * Return the case-insensitive hash of the name made of the
+     * labels from i to the end.
+     */
+    public int suffixHash(int i) {
+        return suffixHashes[i];
+    }
+
+    public void writeTo(DNSBuffer buffer) {
+        buffer.writeBytes(wire);
+    }
+
+    /**
+     * Write the first labelCount labels, without a terminator.
+     */
+    void writeLabelsTo(DNSBuffer buffer, int labelCount) {
+        buffer.writeBytes(wire, 0, labelOffset(labelCount));
+    }
+
+    /**
+     * Check (ignoring case) whether the suffix of this name starting
+     * at label i equals the suffix of another name starting at its
+     * label j.
+     */
+    boolean suffixEquals(int i, DNSName other, int j) {
+        int offset = labelOffset(i);
+        int otherOffset = other.labelOffset(j);
+        int length = wire.length - offset;
+        if (other.wire.length - otherOffset != length) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (toLower(wire[offset + k]) != toLower(other.wire[otherOffset + k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check (ignoring case) whether this name ends with the given
+     * labels.  Every name ends with the root.
+     */
+    public boolean endsWith(DNSName suffix) {
+        int i = labelOffsets.length - suffix.labelOffsets.length;
+        return i >= 0 && suffixHashes[i] == suffix.suffixHashes[0] && suffixEquals(i, suffix, 0);
+    }
+
+    @Override
+    public int hashCode() {
+        return suffixHashes[0];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof DNSName)) {
+            return false;
+        }
+        DNSName other = (DNSName) o;
+        if (other.wire.length != wire.length || other.suffixHashes[0] != suffixHashes[0]) {
+            return false;
+        }
+        for (int i = 0; i < wire.length; i++) {
+            if (toLower(wire[i]) != toLower(other.wire[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (string == null) {
+            StringBuilder sb = new StringBuilder(wire.length);
+            for (int i = 0; i < labelOffsets.length; i++) {
+                if (i > 0) {
+                    sb.append('.');
+                }
+                int offset = labelOffsets[i];
+                sb.append(DNSBuffer.bytesToString(wire, offset + 1, wire[offset] & 0xFF));
+            }
+            string = sb.toString();
+        }
+        return string;
+    }
+
+    /**
+     * Check whether this name has exactly (including case) the
+     * labels found at the given offsets of a packet.
+     */
+    boolean matches(ByteBuffer data, int[] offsets, int count, int wireLength) {
+        if (wire.length != wireLength || labelOffsets.length != count) {
+            return false;
+        }
+        for (int l = 0; l < count; l++) {
+            int offset = labelOffsets[l];
+            int dataOffset = offsets[l];
+            int length = wire[offset] & 0xFF;
+            for (int i = 0; i <= length; i++) {
+                if (wire[offset + i] != data.get(dataOffset + i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // hashing, shared with code that hashes names straight from a packet
+
+    static int labelHash(byte[] bytes, int offset, int length) {
+        int hash = length;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + toLower(bytes[offset + i]);
+        }
+        return hash;
+    }
+
+    static int labelHash(ByteBuffer data, int offset, int length) {
+        int hash = length;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + toLower(data.get(offset + i));
+        }
+        return hash;
+    }
+
+    static int combineHash(int suffixHash, int labelHash) {
+        return suffixHash * 0x01000193 ^ labelHash;
+    }
+
+    static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+    }
+
+}
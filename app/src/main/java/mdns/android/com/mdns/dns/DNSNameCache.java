@@ -0,0 +1,92 @@
+package mdns.android.com.mdns.dns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded intern table of decoded names, keyed by their wire
+ * bytes.
+ * <p/>
+ * The same few hundred names show up in nearly every mDNS packet.
+ * {@link DNSBuffer#readDNSName()} hashes the labels of a name
+ * straight from the packet and probes this table; on a hit the
+ * canonical {@link DNSName} (with its cached string form) is
+ * returned and nothing is allocated.
+ * <p/>
+ * The table is direct-mapped: each hash selects one slot, and a
+ * miss replaces whatever was there.  It is safe to share between
+ * threads.
+ */
+public class DNSNameCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final DNSNameCache defaultCache = new DNSNameCache(DEFAULT_CAPACITY);
+
+    private final AtomicReferenceArray<DNSName> table;
+    private final int mask;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a cache with room for at least the given number of
+     * names (rounded up to a power of two).
+     */
+    public DNSNameCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        table = new AtomicReferenceArray<DNSName>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Return the cache shared by all buffers that were not given
+     * one of their own.
+     */
+    public static DNSNameCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Return the cached name whose labels match the given labels
+     * in the packet, or null.
+     *
+     * @param labelOffsets offsets of the length byte of each label
+     */
+    DNSName lookup(ByteBuffer data, int[] labelOffsets, int labelCount, int wireLength, int hash) {
+        DNSName name = table.get(hash & mask);
+        if (name != null && name.hashCode() == hash && name.matches(data, labelOffsets, labelCount, wireLength)) {
+            hits.incrementAndGet();
+            return name;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(DNSName name) {
+        table.set(name.hashCode() & mask, name);
+    }
+
+    public void clear() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, null);
+        }
+    }
+
+    public int capacity() {
+        return table.length();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public String toString() {
+        return "DNSNameCache(" + capacity() + "): " + getHits() + " hits, " + getMisses() + " misses";
+    }
+
+}
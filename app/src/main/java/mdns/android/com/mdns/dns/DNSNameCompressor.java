@@ -0,0 +1,142 @@
+package mdns.android.com.mdns.dns;
+
+import java.util.Arrays;
+
+/**
+ * The table of names already written to a message, used to emit
+ * compression pointers (RFC 1035 section 4.1.4).
+ * <p/>
+ * Every suffix of every name written is remembered along with its
+ * offset from the start of the message.  When a later name ends in
+ * a suffix that is already in the table, only the leading labels are
+ * written, followed by a pointer to the earlier copy.
+ * <p/>
+ * {@link #measure(DNSName, int)} applies exactly the same rules
+ * without writing anything, so a message can compute its exact
+ * compressed length before its buffer is allocated.  A compressor
+ * can be {@link #reset()} and reused; once its arrays have grown it
+ * does not allocate.
+ */
+public class DNSNameCompressor {
+
+    // pointers can only reach the first 16K of a message
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+
+    // suffix table: entry i is the suffix of names[i] starting
+    // at label labels[i], found at offsets[i]
+    private DNSName[] names = new DNSName[32];
+    private int[] labels = new int[32];
+    private int[] offsets = new int[32];
+    private int[] next = new int[32];
+    private int count;
+    private int messageStart;
+
+    // hash buckets holding (entry index + 1), chained through next[]
+    private int[] buckets = new int[64];
+
+    public void reset() {
+        reset(0);
+    }
+
+    /**
+     * Empty the table for a new message that starts at the given
+     * buffer offset.  Pointers are relative to that offset.
+     */
+    public void reset(int messageStart) {
+        Arrays.fill(names, 0, count, null);
+        Arrays.fill(buckets, 0);
+        count = 0;
+        this.messageStart = messageStart;
+    }
+
+    /**
+     * Return the number of bytes the name will take when written at
+     * the given message offset, and remember its suffixes as if it
+     * had been written.
+     */
+    public int measure(DNSName name, int offset) {
+        int match = compress(name, offset);
+        if (match < name.labelCount()) {
+            return name.labelOffset(match) + 2; // pointer
+        }
+        return name.length();
+    }
+
+    /**
+     * Write a name at the current offset of the buffer, using a
+     * pointer for the longest suffix already written.
+     */
+    public void write(DNSBuffer buffer, DNSName name) {
+        int match = compress(name, buffer.offset - messageStart);
+        if (match < name.labelCount()) {
+            buffer.checkRemaining(name.labelOffset(match) + 2);
+            name.writeLabelsTo(buffer, match);
+            buffer.writeShort(0xC000 | find(name, match));
+        } else {
+            buffer.checkRemaining(name.length());
+            name.writeTo(buffer);
+        }
+    }
+
+    /**
+     * Find the first label of the name whose suffix is already in
+     * the table, and add the suffixes before it.
+     *
+     * @return the label index, or labelCount() if there is none
+     */
+    private int compress(DNSName name, int offset) {
+        int labelCount = name.labelCount();
+        int match = 0;
+        while (match < labelCount && find(name, match) < 0) {
+            match++;
+        }
+        for (int l = 0; l < match; l++) {
+            int labelOffset = offset + name.labelOffset(l);
+            if (labelOffset > MAX_POINTER_OFFSET) {
+                break;
+            }
+            add(name, l, labelOffset);
+        }
+        return match;
+    }
+
+    private int find(DNSName name, int label) {
+        int hash = name.suffixHash(label);
+        for (int e = buckets[hash & (buckets.length - 1)]; e != 0; e = next[e - 1]) {
+            int i = e - 1;
+            if (names[i].suffixHash(labels[i]) == hash && name.suffixEquals(label, names[i], labels[i])) {
+                return offsets[i];
+            }
+        }
+        return -1;
+    }
+
+    private void add(DNSName name, int label, int offset) {
+        if (count == names.length) {
+            grow();
+        }
+        int bucket = name.suffixHash(label) & (buckets.length - 1);
+        names[count] = name;
+        labels[count] = label;
+        offsets[count] = offset;
+        next[count] = buckets[bucket];
+        buckets[bucket] = ++count;
+    }
+
+    private void grow() {
+        int size = names.length * 2;
+        names = Arrays.copyOf(names, size);
+        labels = Arrays.copyOf(labels, size);
+        offsets = Arrays.copyOf(offsets, size);
+        next = Arrays.copyOf(next, size);
+
+        // rehash into a larger bucket array
+        buckets = new int[size * 2];
+        for (int i = 0; i < count; i++) {
+            int bucket = names[i].suffixHash(labels[i]) & (buckets.length - 1);
+            next[i] = buckets[bucket];
+            buckets[bucket] = i + 1;
+        }
+    }
+
+}
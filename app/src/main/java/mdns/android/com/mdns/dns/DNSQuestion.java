@@ -6,10 +6,25 @@ package mdns.android.com.mdns.dns;
 public class DNSQuestion extends DNSComponent {
 
     public Type type;
-    public String name;
+    /**
+     * The question type code, which is kept even if type is OTHER.
+     */
+    public int typeCode;
+    public DNSName name;
 
     public DNSQuestion(Type type, String name) {
+        this(type, DNSName.of(name));
+    }
+
+    public DNSQuestion(Type type, DNSName name) {
         this.type = type;
+        this.typeCode = type.qtype;
+        this.name = name;
+    }
+
+    public DNSQuestion(int typeCode, DNSName name) {
+        this.type = Type.getType(typeCode);
+        this.typeCode = typeCode;
         this.name = name;
     }
 
@@ -21,18 +36,23 @@ public class DNSQuestion extends DNSComponent {
      * Return the expected byte length of this question.
      */
     public int length() {
-        int length = DNSBuffer.nameByteLength(name);
-        length += 5; // zero-terminating length byte, qtype short, qclass short 
+        int length = name.length();
+        length += 4; // qtype short, qclass short
         return length;
     }
 
+    @Override
+    public int length(DNSNameCompressor compressor, int offset) {
+        return compressor.measure(name, offset) + 4;
+    }
+
     /**
      * Render this DNS question into a byte buffer
      */
     public void serialize(DNSBuffer buffer) {
-        buffer.checkRemaining(length());
         buffer.writeName(name); // qname
-        buffer.writeShort(type.qtype); // qtype
+        buffer.checkRemaining(4);
+        buffer.writeShort(typeCode); // qtype
         buffer.writeShort(1); // qclass (IN)
     }
 
@@ -42,8 +62,9 @@ public class DNSQuestion extends DNSComponent {
      * @param buffer
      */
     private void parse(DNSBuffer buffer) {
-        name = buffer.readName();
-        type = Type.getType(buffer.readShort());
+        name = buffer.readDNSName();
+        typeCode = buffer.readShortAsInt();
+        type = Type.getType(typeCode);
         int qclass = buffer.readShort();
         if (qclass != 1) {
             throw new DNSException("only class IN supported.  (got " + qclass + ")");
@@ -0,0 +1,576 @@
+package mdns.android.com.mdns.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The decoded rdata of a resource record.
+ * <p/>
+ * Decoded rdata of the known types compares by value; {@link Raw}
+ * only records the length, so it compares by identity.
+ * <p/>
+ * Decoders are registered per 16-bit record type in a two-level
+ * table, so finding the decoder for a record is two array lookups.
+ * Types without a decoder are kept as {@link Raw}.  Applications may
+ * {@link #register(int, Decoder)} decoders of their own.
+ */
+public abstract class DNSRdata {
+
+    /**
+     * Return the length of this rdata when written at the given
+     * message offset, recording any names in the compressor (which
+     * may be null to measure without compression).
+     */
+    public abstract int length(DNSNameCompressor compressor, int offset);
+
+    /**
+     * Write this rdata (without the rdlength field) at the current
+     * buffer offset.
+     */
+    public abstract void serialize(DNSBuffer buffer);
+
+    /**
+     * Return true if this rdata holds domain names, which may be
+     * compressed on the wire and so cannot be copied byte for byte
+     * from one message into another.
+     */
+    public boolean containsNames() {
+        return false;
+    }
+
+    /**
+     * Decodes the rdata of one record type.
+     */
+    public interface Decoder {
+        /**
+         * Decode rdata starting at the current buffer offset.  The
+         * offset may be left anywhere; the caller moves it past the
+         * rdata afterward.
+         */
+        DNSRdata decode(DNSBuffer buffer, int length);
+    }
+
+    // decoders[type >>> 8][type & 0xFF], pages allocated on demand
+    private static final Decoder[][] decoders = new Decoder[256][];
+
+    public static synchronized void register(int type, Decoder decoder) {
+        Decoder[] page = decoders[(type >>> 8) & 0xFF];
+        if (page == null) {
+            page = new Decoder[256];
+            decoders[(type >>> 8) & 0xFF] = page;
+        }
+        page[type & 0xFF] = decoder;
+    }
+
+    public static Decoder getDecoder(int type) {
+        Decoder[] page = decoders[(type >>> 8) & 0xFF];
+        return (page != null) ? page[type & 0xFF] : null;
+    }
+
+    /**
+     * Decode the rdata at the current buffer offset with the decoder
+     * registered for the type, leaving the offset just past the rdata.
+     */
+    public static DNSRdata decode(int type, DNSBuffer buffer, int length) {
+        int end = buffer.offset + length;
+        Decoder decoder = getDecoder(type);
+        DNSRdata rdata = (decoder != null) ? decoder.decode(buffer, length) : new Raw(length);
+        buffer.offset = end;
+        return rdata;
+    }
+
+    // the standard decoders.  They are fields of this class rather
+    // than of the rdata classes, so registering them does not depend
+    // on which class happens to be initialized first.
+
+    private static final Decoder ADDRESS_DECODER = new Decoder() {
+        @Override
+        public DNSRdata decode(DNSBuffer buffer, int length) {
+            try {
+                return new Address(InetAddress.getByAddress(buffer.readBytes(length)));
+            } catch (UnknownHostException e) {
+                throw new DNSException("problem parsing rdata");
+            }
+        }
+    };
+
+    private static final Decoder NAME_DECODER = new Decoder() {
+        @Override
+        public DNSRdata decode(DNSBuffer buffer, int length) {
+            int end = buffer.offset + length;
+            DNSName name = buffer.readDNSName();
+            if (buffer.offset != end) {
+                throw new DNSException("bad name rdata");
+            }
+            return new Name(name);
+        }
+    };
+
+    private static final Decoder TEXT_DECODER = new Decoder() {
+        @Override
+        public DNSRdata decode(DNSBuffer buffer, int length) {
+            int end = buffer.offset + length;
+            List<String> strings = new ArrayList<String>();
+            while (buffer.offset < end) {
+                strings.add(readCharacterString(buffer, end));
+            }
+            return new Text(Collections.unmodifiableList(strings));
+        }
+    };
+
+    private static final Decoder HINFO_DECODER = new Decoder() {
+        @Override
+        public DNSRdata decode(DNSBuffer buffer, int length) {
+            int end = buffer.offset + length;
+            String cpu = readCharacterString(buffer, end);
+            String os = readCharacterString(buffer, end);
+            return new Hinfo(cpu, os);
+        }
+    };
+
+    private static final Decoder SRV_DECODER = new Decoder() {
+        @Override
+        public DNSRdata decode(DNSBuffer buffer, int length) {
+            if (length < 7) {
+                throw new DNSException("bad SRV rdata");
+            }
+            int priority = buffer.readShortAsInt();
+            int weight = buffer.readShortAsInt();
+            int port = buffer.readShortAsInt();
+            return new Srv(priority, weight, port, buffer.readDNSName());
+        }
+    };
+
+    private static final Decoder NSEC_DECODER = new Decoder() {
+        @Override
+        public DNSRdata decode(DNSBuffer buffer, int length) {
+            int end = buffer.offset + length;
+            DNSName next = buffer.readDNSName();
+
+            // type bit maps: window, bitmap length, bitmap
+            int count = 0;
+            int[] types = new int[8];
+            while (buffer.offset + 2 <= end) {
+                int window = buffer.readByte() & 0xFF;
+                int bitmapLength = buffer.readByte() & 0xFF;
+                if (bitmapLength > 32 || buffer.offset + bitmapLength > end) {
+                    throw new DNSException("bad NSEC rdata");
+                }
+                for (int i = 0; i < bitmapLength; i++) {
+                    int bits = buffer.readByte() & 0xFF;
+                    for (int bit = 0; bit < 8; bit++) {
+                        if ((bits & (0x80 >>> bit)) != 0) {
+                            if (count == types.length) {
+                                types = Arrays.copyOf(types, count * 2);
+                            }
+                            types[count++] = (window << 8) | (i << 3) | bit;
+                        }
+                    }
+                }
+            }
+            return new Nsec(next, Arrays.copyOf(types, count));
+        }
+    };
+
+    static {
+        register(DNSComponent.Type.A.qtype, ADDRESS_DECODER);
+        register(DNSComponent.Type.AAAA.qtype, ADDRESS_DECODER);
+        register(DNSComponent.Type.NS.qtype, NAME_DECODER);
+        register(DNSComponent.Type.CNAME.qtype, NAME_DECODER);
+        register(DNSComponent.Type.PTR.qtype, NAME_DECODER);
+        register(DNSComponent.Type.TXT.qtype, TEXT_DECODER);
+        register(DNSComponent.Type.HINFO.qtype, HINFO_DECODER);
+        register(DNSComponent.Type.SRV.qtype, SRV_DECODER);
+        register(DNSComponent.Type.NSEC.qtype, NSEC_DECODER);
+    }
+
+    /**
+     * A or AAAA: an IPv4 or IPv6 address.
+     */
+    public static class Address extends DNSRdata {
+        public final InetAddress address;
+
+        public Address(InetAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public int length(DNSNameCompressor compressor, int offset) {
+            return address.getAddress().length;
+        }
+
+        @Override
+        public void serialize(DNSBuffer buffer) {
+            byte[] bytes = address.getAddress();
+            buffer.checkRemaining(bytes.length);
+            buffer.writeBytes(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Address)) {
+                return false;
+            }
+            Address other = (Address) o;
+            return address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode();
+        }
+
+        public String toString() {
+            return address.toString();
+        }
+    }
+
+    /**
+     * PTR, CNAME or NS: a single domain name.
+     */
+    public static class Name extends DNSRdata {
+        public final DNSName name;
+
+        public Name(DNSName name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean containsNames() {
+            return true;
+        }
+
+        @Override
+        public int length(DNSNameCompressor compressor, int offset) {
+            return (compressor != null) ? compressor.measure(name, offset) : name.length();
+        }
+
+        @Override
+        public void serialize(DNSBuffer buffer) {
+            buffer.writeName(name);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Name)) {
+                return false;
+            }
+            Name other = (Name) o;
+            return name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        public String toString() {
+            return name.toString();
+        }
+    }
+
+    /**
+     * TXT: a list of character-strings.
+     */
+    public static class Text extends DNSRdata {
+        public final List<String> strings;
+
+        public Text(List<String> strings) {
+            this.strings = strings;
+        }
+
+        @Override
+        public int length(DNSNameCompressor compressor, int offset) {
+            int length = 0;
+            for (String string : strings) {
+                length += 1 + DNSBuffer.stringToBytes(string).length;
+            }
+            return length;
+        }
+
+        @Override
+        public void serialize(DNSBuffer buffer) {
+            for (String string : strings) {
+                writeCharacterString(buffer, string);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Text)) {
+                return false;
+            }
+            Text other = (Text) o;
+            return strings.equals(other.strings);
+        }
+
+        @Override
+        public int hashCode() {
+            return strings.hashCode();
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < strings.size(); i++) {
+                if (i > 0) {
+                    sb.append(" // ");
+                }
+                sb.append(strings.get(i));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * HINFO: CPU and operating system.
+     */
+    public static class Hinfo extends DNSRdata {
+        public final String cpu;
+        public final String os;
+
+        public Hinfo(String cpu, String os) {
+            this.cpu = cpu;
+            this.os = os;
+        }
+
+        @Override
+        public int length(DNSNameCompressor compressor, int offset) {
+            return 2 + DNSBuffer.stringToBytes(cpu).length + DNSBuffer.stringToBytes(os).length;
+        }
+
+        @Override
+        public void serialize(DNSBuffer buffer) {
+            writeCharacterString(buffer, cpu);
+            writeCharacterString(buffer, os);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Hinfo)) {
+                return false;
+            }
+            Hinfo other = (Hinfo) o;
+            return cpu.equals(other.cpu) && os.equals(other.os);
+        }
+
+        @Override
+        public int hashCode() {
+            return cpu.hashCode() * 31 + os.hashCode();
+        }
+
+        public String toString() {
+            return cpu + " " + os;
+        }
+    }
+
+    /**
+     * SRV: the host and port of a service instance.
+     */
+    public static class Srv extends DNSRdata {
+        public final int priority;
+        public final int weight;
+        public final int port;
+        public final DNSName target;
+
+        public Srv(int priority, int weight, int port, DNSName target) {
+            this.priority = priority;
+            this.weight = weight;
+            this.port = port;
+            this.target = target;
+        }
+
+        @Override
+        public boolean containsNames() {
+            return true;
+        }
+
+        @Override
+        public int length(DNSNameCompressor compressor, int offset) {
+            return 6 + ((compressor != null) ? compressor.measure(target, offset + 6) : target.length());
+        }
+
+        @Override
+        public void serialize(DNSBuffer buffer) {
+            buffer.checkRemaining(6);
+            buffer.writeShort(priority);
+            buffer.writeShort(weight);
+            buffer.writeShort(port);
+            buffer.writeName(target);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Srv)) {
+                return false;
+            }
+            Srv other = (Srv) o;
+            return priority == other.priority && weight == other.weight && port == other.port
+                    && target.equals(other.target);
+        }
+
+        @Override
+        public int hashCode() {
+            return target.hashCode() * 31 + port;
+        }
+
+        public String toString() {
+            return priority + " " + weight + " " + port + " " + target;
+        }
+    }
+
+    /**
+     * NSEC: the next name and the types that exist for this name.
+     * mDNS uses this to assert that no other types exist.
+     */
+    public static class Nsec extends DNSRdata {
+        public final DNSName next;
+        public final int[] types;
+
+        public Nsec(DNSName next, int[] types) {
+            this.next = next;
+            this.types = types;
+        }
+
+        public boolean hasType(int type) {
+            for (int t : types) {
+                if (t == type) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean containsNames() {
+            return true;
+        }
+
+        @Override
+        public int length(DNSNameCompressor compressor, int offset) {
+            // the next name is written in full
+            int length = next.length();
+            int window = -1;
+            for (int type : types) {
+                if ((type >>> 8) != window) {
+                    window = type >>> 8;
+                    length += 2;
+                }
+            }
+            return length + bitmapBytes(types);
+        }
+
+        @Override
+        public void serialize(DNSBuffer buffer) {
+            buffer.checkRemaining(length(null, 0));
+            next.writeTo(buffer);
+            int i = 0;
+            while (i < types.length) {
+                int window = types[i] >>> 8;
+                int end = i;
+                while (end < types.length && (types[end] >>> 8) == window) {
+                    end++;
+                }
+                int bitmapLength = ((types[end - 1] & 0xFF) >>> 3) + 1;
+                byte[] bitmap = new byte[bitmapLength];
+                for (int t = i; t < end; t++) {
+                    int bit = types[t] & 0xFF;
+                    bitmap[bit >>> 3] |= (byte) (0x80 >>> (bit & 7));
+                }
+                buffer.writeByte((byte) window);
+                buffer.writeByte((byte) bitmapLength);
+                buffer.writeBytes(bitmap);
+                i = end;
+            }
+        }
+
+        // the total length of the bitmaps of all windows (types are
+        // in ascending order, as decoded)
+        private static int bitmapBytes(int[] types) {
+            int length = 0;
+            for (int i = 0; i < types.length; i++) {
+                if (i == types.length - 1 || (types[i + 1] >>> 8) != (types[i] >>> 8)) {
+                    length += ((types[i] & 0xFF) >>> 3) + 1;
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Nsec)) {
+                return false;
+            }
+            Nsec other = (Nsec) o;
+            return next.equals(other.next) && Arrays.equals(types, other.types);
+        }
+
+        @Override
+        public int hashCode() {
+            return next.hashCode() * 31 + Arrays.hashCode(types);
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(next.toString());
+            for (int type : types) {
+                DNSComponent.Type t = DNSComponent.Type.getType(type);
+                sb.append(' ').append((t != DNSComponent.Type.OTHER) ? t.toString() : "TYPE" + type);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Any type without a decoder.
+     */
+    public static class Raw extends DNSRdata {
+        public final int length;
+
+        public Raw(int length) {
+            this.length = length;
+        }
+
+        @Override
+        public int length(DNSNameCompressor compressor, int offset) {
+            return length;
+        }
+
+        /**
+         * The bytes of an unknown type are not kept here, so this
+         * cannot be written; {@link DNSAnswer} writes its raw rdata
+         * instead.
+         */
+        @Override
+        public void serialize(DNSBuffer buffer) {
+            throw new DNSException("cannot serialize raw rdata");
+        }
+
+        public String toString() {
+            return "data[" + length + "]";
+        }
+    }
+
+    // utility methods for decoders
+
+    protected static void writeCharacterString(DNSBuffer buffer, String string) {
+        byte[] bytes = DNSBuffer.stringToBytes(string);
+        if (bytes.length > 255) {
+            throw new DNSException("character-string length > 255");
+        }
+        buffer.checkRemaining(1 + bytes.length);
+        buffer.writeByte((byte) bytes.length);
+        buffer.writeBytes(bytes);
+    }
+
+    protected static String readCharacterString(DNSBuffer buffer, int end) {
+        int length = buffer.readByte() & 0xFF;
+        if (buffer.offset + length > end) {
+            throw new DNSException("character-string runs past rdata");
+        }
+        return buffer.readString(length);
+    }
+
+}
@@ -0,0 +1,92 @@
+package mdns.android.com.mdns.dns;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A DNS-SD service instance assembled from PTR, SRV, TXT and
+ * address records.
+ * <p/>
+ * Responders send the SRV, TXT and A/AAAA records for a service in
+ * the additional section of the PTR response, so a single response
+ * is often enough to resolve a service completely with no further
+ * queries.
+ */
+public class DNSServiceInfo {
+
+    public final DNSName instance;
+    public DNSName host;
+    public int port;
+    public List<String> text = Collections.emptyList();
+    public List<InetAddress> addresses = new ArrayList<InetAddress>();
+
+    public DNSServiceInfo(DNSName instance) {
+        this.instance = instance;
+    }
+
+    /**
+     * Return true if the host, port and at least one address of
+     * the service are known.
+     */
+    public boolean isResolved() {
+        return host != null && !addresses.isEmpty();
+    }
+
+    /**
+     * Resolve every instance of a service type that can be found in
+     * a set of records, typically {@link DNSMessage#getRecords()}.
+     *
+     * @param serviceType for example _http._tcp.local
+     */
+    public static List<DNSServiceInfo> resolve(Iterable<DNSAnswer> records, DNSName serviceType) {
+        List<DNSServiceInfo> services = new ArrayList<DNSServiceInfo>();
+        for (DNSAnswer record : records) {
+            // a pointer whose rdata did not decode as a name is skipped
+            if (record.type == DNSComponent.Type.PTR && record.data instanceof DNSRdata.Name
+                    && record.name.equals(serviceType)) {
+                DNSServiceInfo service = new DNSServiceInfo(((DNSRdata.Name) record.data).name);
+                service.fill(records);
+                services.add(service);
+            }
+        }
+        return services;
+    }
+
+    /**
+     * Fill in whatever can be found for this instance in a set of
+     * records.  Records whose rdata did not decode to the expected
+     * form are skipped.
+     */
+    public void fill(Iterable<DNSAnswer> records) {
+        for (DNSAnswer record : records) {
+            if (record.type == DNSComponent.Type.SRV && record.data instanceof DNSRdata.Srv
+                    && record.name.equals(instance)) {
+                DNSRdata.Srv srv = (DNSRdata.Srv) record.data;
+                host = srv.target;
+                port = srv.port;
+            } else if (record.type == DNSComponent.Type.TXT && record.data instanceof DNSRdata.Text
+                    && record.name.equals(instance)) {
+                text = ((DNSRdata.Text) record.data).strings;
+            }
+        }
+        if (host == null) {
+            return;
+        }
+        for (DNSAnswer record : records) {
+            if ((record.type == DNSComponent.Type.A || record.type == DNSComponent.Type.AAAA)
+                    && record.data instanceof DNSRdata.Address && record.name.equals(host)) {
+                InetAddress address = ((DNSRdata.Address) record.data).address;
+                if (!addresses.contains(address)) {
+                    addresses.add(address);
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return instance + " " + host + ":" + port + " " + addresses + " " + text;
+    }
+
+}
@@ -0,0 +1,253 @@
+package mdns.android.com.mdns.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A DNS message that is parsed on demand.
+ * <p/>
+ * The initial pass only reads the header and records where each
+ * question and resource record starts in the packet.  Names, types,
+ * TTLs and rdata are decoded from the packet when they are asked
+ * for, and {@link DNSQuestion}/{@link DNSAnswer} objects are only
+ * built for the entries that are actually requested.  A packet that
+ * is inspected and dropped costs one pass over the bytes and no
+ * per-record allocation.
+ * <p/>
+ * The message refers to the packet buffer, so it is only valid
+ * until that buffer is reused.  Instances may be reused for the
+ * next packet with {@link #parse(ByteBuffer)}, which keeps the
+ * index arrays.
+ */
+public class LazyDNSMessage {
+
+    // the shortest question (a root name, type and class) and
+    // record (the same plus TTL and rdata length)
+    private static final int MIN_QUESTION_LENGTH = 5;
+    private static final int MIN_RECORD_LENGTH = 11;
+
+    private DNSBuffer buffer;
+    // wrapped onto each packet given as an array or ByteBuffer
+    private final DNSBuffer reader = new DNSBuffer(0);
+
+    private short messageId;
+    private int flags;
+    private int qdcount;
+    private int ancount;
+    private int nscount;
+    private int arcount;
+
+    // per entry: the offset of its name and the offset of the
+    // fields that follow the name (questions first, then records)
+    private int[] nameOffsets = new int[16];
+    private int[] fieldOffsets = new int[16];
+
+    // entries materialized so far
+    private DNSQuestion[] questions = new DNSQuestion[4];
+    private DNSAnswer[] records = new DNSAnswer[12];
+
+    public LazyDNSMessage() {
+    }
+
+    public LazyDNSMessage(byte[] packet, int offset, int length) {
+        reader.wrap(packet, offset, length);
+        parse(reader);
+    }
+
+    public LazyDNSMessage(ByteBuffer packet) {
+        parse(packet);
+    }
+
+    /**
+     * Index the remaining bytes of the supplied buffer as a DNS
+     * message, replacing any previous contents.
+     */
+    public void parse(ByteBuffer packet) {
+        reader.wrap(packet);
+        parse(reader);
+    }
+
+    public void parse(DNSBuffer buffer) {
+        this.buffer = buffer;
+        DNSMessageWalker.walk(buffer, indexer);
+    }
+
+    /**
+     * Fills in the header fields and index arrays as the message
+     * is walked.
+     */
+    private final DNSMessageVisitor indexer = new DNSMessageVisitor() {
+
+        private int entry;
+
+        @Override
+        public void onHeader(int id, int flags, int qd, int an, int ns, int ar) {
+            messageId = (short) id;
+            LazyDNSMessage.this.flags = flags;
+            qdcount = qd;
+            ancount = an;
+            nscount = ns;
+            arcount = ar;
+            entry = 0;
+
+            // the counts come from the packet, so check that it could
+            // hold that many entries before sizing anything by them
+            if (qd * MIN_QUESTION_LENGTH + (an + ns + ar) * MIN_RECORD_LENGTH > buffer.remaining()) {
+                throw new DNSException("section counts exceed message length");
+            }
+
+            int entries = qd + an + ns + ar;
+            if (nameOffsets.length < entries) {
+                nameOffsets = new int[entries];
+                fieldOffsets = new int[entries];
+            }
+            if (questions.length < qd) {
+                questions = new DNSQuestion[qd];
+            } else {
+                Arrays.fill(questions, null);
+            }
+            if (records.length < an + ns + ar) {
+                records = new DNSAnswer[an + ns + ar];
+            } else {
+                Arrays.fill(records, null);
+            }
+        }
+
+        @Override
+        public void onQuestion(DNSBuffer buffer, int nameOffset, int nameLength, int qtype, int qclass) {
+            nameOffsets[entry] = nameOffset;
+            fieldOffsets[entry] = nameOffset + nameLength;
+            entry++;
+        }
+
+        @Override
+        public void onRecord(DNSBuffer buffer, int section, int nameOffset, int nameLength,
+                             int rrtype, int rrclass, int ttl, int rdataOffset, int rdataLength) {
+            nameOffsets[entry] = nameOffset;
+            fieldOffsets[entry] = nameOffset + nameLength;
+            entry++;
+        }
+
+        @Override
+        public void onEnd() {
+        }
+    };
+
+    // header
+
+    public short getMessageId() {
+        return messageId;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isResponse() {
+        return (flags & 0x8000) != 0;
+    }
+
+    public int getQuestionCount() {
+        return qdcount;
+    }
+
+    public int getAnswerCount() {
+        return ancount;
+    }
+
+    public int getAuthorityCount() {
+        return nscount;
+    }
+
+    public int getAdditionalCount() {
+        return arcount;
+    }
+
+    /**
+     * Return the number of resource records in all sections.
+     * Record indexes run through the answer, authority and
+     * additional sections in that order.
+     */
+    public int getRecordCount() {
+        return ancount + nscount + arcount;
+    }
+
+    // questions
+
+    public DNSName getQuestionName(int i) {
+        checkIndex(i, qdcount);
+        buffer.offset = nameOffsets[i];
+        return buffer.readDNSName();
+    }
+
+    public DNSComponent.Type getQuestionType(int i) {
+        checkIndex(i, qdcount);
+        buffer.offset = fieldOffsets[i];
+        return DNSComponent.Type.getType(buffer.readShortAsInt());
+    }
+
+    public DNSQuestion getQuestion(int i) {
+        checkIndex(i, qdcount);
+        if (questions[i] == null) {
+            buffer.offset = nameOffsets[i];
+            questions[i] = new DNSQuestion(buffer);
+        }
+        return questions[i];
+    }
+
+    // records
+
+    public DNSName getRecordName(int i) {
+        checkIndex(i, getRecordCount());
+        buffer.offset = nameOffsets[qdcount + i];
+        return buffer.readDNSName();
+    }
+
+    public DNSComponent.Type getRecordType(int i) {
+        checkIndex(i, getRecordCount());
+        buffer.offset = fieldOffsets[qdcount + i];
+        return DNSComponent.Type.getType(buffer.readShortAsInt());
+    }
+
+    public int getRecordTypeCode(int i) {
+        checkIndex(i, getRecordCount());
+        buffer.offset = fieldOffsets[qdcount + i];
+        return buffer.readShortAsInt();
+    }
+
+    public int getRecordTtl(int i) {
+        checkIndex(i, getRecordCount());
+        buffer.offset = fieldOffsets[qdcount + i] + 4;
+        return buffer.readInteger();
+    }
+
+    /**
+     * Return a read-only view of the rdata of a record.
+     */
+    public ByteBuffer getRecordRdata(int i) {
+        checkIndex(i, getRecordCount());
+        buffer.offset = fieldOffsets[qdcount + i] + 8;
+        return buffer.readRdataSlice();
+    }
+
+    public DNSAnswer getRecord(int i) {
+        checkIndex(i, getRecordCount());
+        if (records[i] == null) {
+            buffer.offset = nameOffsets[qdcount + i];
+            records[i] = new DNSAnswer(buffer);
+        }
+        return records[i];
+    }
+
+    public DNSAnswer getAnswer(int i) {
+        checkIndex(i, ancount);
+        return getRecord(i);
+    }
+
+    private static void checkIndex(int i, int count) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("index " + i + " of " + count);
+        }
+    }
+
+}
@@ -2,11 +2,29 @@ package mdns.android.com.mdns.multicast;
 
 /**
  * Created by user on 11/10/2015.
+ * <p/>
+ * The payload of a response event.  A new one is made for every
+ * event and never changed, so listeners may keep it.
  */
 public class DNSData {
-    public String description;
-    public String src;
-    public String dstPort;
-    public String srcPort;
+    public final String src;
+    public final String dstPort;
+    public final String srcPort;
+    public final Packet packet;
+
+    public DNSData(Packet packet) {
+        this.src = packet.src.getHostAddress();
+        this.srcPort = Integer.toString(packet.srcPort);
+        this.dstPort = Integer.toString(packet.dstPort);
+        this.packet = packet;
+    }
+
+    /**
+     * Return the packet's message as text.  It is only formatted
+     * when asked for.
+     */
+    public String getDescription() {
+        return packet.getDescription();
+    }
 
 }
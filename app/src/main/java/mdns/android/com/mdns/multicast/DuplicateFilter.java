@@ -0,0 +1,79 @@
+package mdns.android.com.mdns.multicast;
+
+/**
+ * Remembers the packets seen in the last moment, by the 64-bit hash
+ * of their payload and source ({@link Packet#hash}), so exact
+ * copies can be dropped before they are parsed.
+ * <p/>
+ * Responders often send the same response more than once, and a
+ * host on several interfaces hears each packet on each of them.
+ * <p/>
+ * The table is a fixed array of hashes and times, searched over a
+ * short probe sequence.  A slot whose time has left the window is
+ * free, so nothing is ever removed or resized, and a full probe
+ * sequence just gives up its oldest entry.  A collision between two
+ * different packets is possible but needs a 64-bit hash match in
+ * the same second.
+ * <p/>
+ * Only used from the network thread; not thread-safe.
+ */
+public class DuplicateFilter {
+
+    private static final int PROBES = 8;
+
+    private final long[] hashes;
+    private final long[] times;
+    private final int mask;
+    private final long window;
+    private volatile long duplicateCount;
+
+    /**
+     * @param size   the number of packets remembered (rounded up to a
+     *               power of two)
+     * @param window how long a packet is remembered, in milliseconds
+     */
+    public DuplicateFilter(int size, long window) {
+        int count = Integer.highestOneBit(Math.max(size - 1, PROBES)) << 1;
+        this.hashes = new long[count];
+        this.times = new long[count];
+        this.mask = count - 1;
+        this.window = window;
+    }
+
+    /**
+     * Return true if a packet with the same hash was seen within
+     * the window; otherwise remember this one.
+     *
+     * @param now the current time, in milliseconds (never 0)
+     */
+    public boolean isDuplicate(long hash, long now) {
+        int start = (int) (hash ^ (hash >>> 32)) & mask;
+        int victim = start;
+        for (int p = 0; p < PROBES; p++) {
+            int i = (start + p) & mask;
+            boolean live = times[i] != 0 && now - times[i] < window;
+            if (live && hashes[i] == hash) {
+                duplicateCount++;
+                return true;
+            }
+            if (!live) {
+                victim = i;
+                // keep looking, the hash may be further along
+                times[i] = 0;
+            } else if (times[victim] != 0 && times[i] < times[victim]) {
+                victim = i;
+            }
+        }
+        hashes[victim] = hash;
+        times[victim] = now;
+        return false;
+    }
+
+    /**
+     * Return the number of packets found to be duplicates.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+}
@@ -1,96 +1,234 @@
 package mdns.android.com.mdns.multicast;
 
 import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import mdns.android.com.mdns.dns.DNSAnswer;
+import mdns.android.com.mdns.dns.DNSName;
+import mdns.android.com.mdns.dns.DNSServiceInfo;
 
 public class IPCHandler extends Handler {
 
     private static final int MSG_SET_STATUS = 1;
-    private static final int MSG_ADD_PACKET = 2;
     private static final int MSG_ERROR = 3;
-    private NetThread netThread = null;
+    private static final int MSG_FLUSH = 4;
+
+    // about one display frame at 60 Hz
+    private static final long DEFAULT_BATCH_INTERVAL = 16;
+    // also read by the connectivity callback, on its own thread
+    private volatile NetThread netThread = null;
     private static final String TAG = "";
     private Context context;
-    public DNSData data;
     private MDNSListener listener;
+    private PacketListener packetListener;
+    private StatusListener statusListener;
+    private ErrorListener errorListener;
+    private final SubscriptionRegistry subscriptions = new SubscriptionRegistry();
+
+    // packets waiting for the next flush; at most one MSG_FLUSH is
+    // ever queued
+    private final Queue<Packet> pendingPackets = new ConcurrentLinkedQueue<Packet>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile long batchInterval = DEFAULT_BATCH_INTERVAL;
+    private volatile long lastFlush;
+
+    // the network thread's configuration, applied to each new thread
+    // before it starts
+    private int parserThreads = 1;
+    private PacketRing.WaitStrategy waitStrategy = PacketRing.WaitStrategy.BLOCKING;
+    private int burstLimit = NetThread.DEFAULT_BURST_LIMIT;
+    private long coalescingWindow = NetThread.DEFAULT_COALESCING_WINDOW;
 
     public static final String IpRequest = "IpRequest";
-    public static final String IpResponse = "IpRequest";
+    public static final String IpResponse = "IpResponse";
+    private static final DNSName IP_REQUEST_NAME = DNSName.of(IpRequest);
+    private static final DNSName IP_RESPONSE_NAME = DNSName.of(IpResponse);
+
+    // restarts the standing queries whenever a Wi-Fi network comes
+    // or goes, since their answers may have changed with it
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback(){
+        @Override
+        public void onAvailable(Network network){
+            networkChanged();
+        }
+
+        @Override
+        public void onLost(Network network){
+            networkChanged();
+        }
+    };
 
     public IPCHandler(Context context){
         this.context = context;
-        data = new DNSData();
     }
 
+    /**
+     * Receives the IpResponse packets of one batch.
+     */
     public interface MDNSListener{
-        void onResponse(DNSData data);
+        void onResponses(List<DNSData> responses);
+    }
+
+    /**
+     * Receives every packet the network thread reports, a batch at
+     * a time, with exact duplicates removed.
+     */
+    public interface PacketListener{
+        void onPackets(List<Packet> packets);
+    }
+
+    public interface StatusListener{
+        void onStatus(String status);
+    }
+
+    public interface ErrorListener{
+        void onError(Throwable throwable);
     }
 
     public void setMDNSListener(MDNSListener listener){
         this.listener = listener;
     }
 
-    @Override
-    public void handleMessage(Message msg) {
-        super.handleMessage(msg);
+    public void setPacketListener(PacketListener listener){
+        this.packetListener = listener;
+    }
 
-        for (Field field : msg.obj.getClass().getDeclaredFields()) {
-            field.setAccessible(true);
-            Object value = null;
-            try {
-                value = field.get(msg.obj);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            }
-            if (value != null) {
-                switch (field.getName()) {
-                    case "description":
-                        data.description = value.toString().replace("ANY? ", "");
-                        break;
-                    case "src":
-                        data.src = value.toString().replace("/", "");
-                        break;
-                    case "dstPort":
-                        data.dstPort = value.toString();
-                        break;
-                    case "srcPort":
-                        data.srcPort = value.toString();
-                        break;
-                    default:
-                        break;
-                }
-                Log.e("ObjectField", field.getName() + "=" + value);
-            }
-        }
+    public void setStatusListener(StatusListener listener){
+        this.statusListener = listener;
+    }
 
-        if (data.description != null && data.description.equals("IpRequest")) {
-            try {
-                Log.e(TAG, "Sending response to " + data.src);
-                netThread.submitQuery("IpResponse");
-            } catch (Exception e) {
-                e.printStackTrace();
-                return;
-            }
-        } else if (data.description != null && data.description.equals("IpResponse")) {
-            Log.e("DNSData", "Receive response from: " + data.src);
-            if (listener != null){
-                listener.onResponse(data);
-            }
+    public void setErrorListener(ErrorListener listener){
+        this.errorListener = listener;
+    }
+
+    /**
+     * Set the shortest time, in milliseconds, between two batches of
+     * packets.  The default is one display frame.
+     */
+    public void setBatchInterval(long millis){
+        this.batchInterval = millis;
+    }
+
+    /**
+     * Set the number of threads that parse received packets; see
+     * {@link NetThread#setParserThreads}.  Takes effect the next time
+     * the network thread starts.
+     */
+    public void setParserThreads(int count){
+        this.parserThreads = count;
+    }
+
+    /**
+     * Set how the parser threads wait for packets.  Takes effect the
+     * next time the network thread starts.
+     */
+    public void setWaitStrategy(PacketRing.WaitStrategy waitStrategy){
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Set the most datagrams read per wakeup.  Takes effect the next
+     * time the network thread starts.
+     */
+    public void setBurstLimit(int limit){
+        this.burstLimit = limit;
+    }
+
+    /**
+     * Set how long, in milliseconds, queries are held so that they
+     * can be sent together.  Takes effect at once.
+     */
+    public void setCoalescingWindow(long millis){
+        this.coalescingWindow = millis;
+        NetThread thread = netThread;
+        if (thread != null) {
+            thread.setCoalescingWindow(millis);
         }
+    }
+
+    /**
+     * Return the number of packets dropped since the network thread
+     * started because the parsers were too far behind.
+     */
+    public long getDroppedOverflowCount(){
+        NetThread thread = netThread;
+        return (thread != null) ? thread.getDroppedOverflowCount() : 0;
+    }
+
+    /**
+     * Return the number of packets dropped since the network thread
+     * started as exact repeats.
+     */
+    public long getDroppedDuplicateCount(){
+        NetThread thread = netThread;
+        return (thread != null) ? thread.getDroppedDuplicateCount() : 0;
+    }
+
+    /**
+     * Return the number of packets dropped since the network thread
+     * started because their source was sending too fast.
+     */
+    public long getDroppedRateLimitedCount(){
+        NetThread thread = netThread;
+        return (thread != null) ? thread.getDroppedRateLimitedCount() : 0;
+    }
 
+    /**
+     * Return the number of packets dropped since the network thread
+     * started with nothing in them for us.
+     */
+    public long getDroppedNoiseCount(){
+        NetThread thread = netThread;
+        return (thread != null) ? thread.getDroppedNoiseCount() : 0;
+    }
+
+    /**
+     * Return the registry through which components subscribe to the
+     * records they care about.  Subscriptions outlive the network
+     * thread, so they survive a pause and resume.
+     */
+    public SubscriptionRegistry getSubscriptions(){
+        return subscriptions;
+    }
+
+    /**
+     * Dispatch an event from the network thread to the listener for
+     * its type.  Each event carries its own payload, which is never
+     * changed after it is sent.
+     */
+    @Override
+    public void handleMessage(Message msg) {
         switch (msg.what) {
-            case MSG_SET_STATUS:
-                Log.e("StatusPacket", msg.obj.toString());
+            case MSG_FLUSH:
+                flush();
                 break;
-            case MSG_ADD_PACKET:
-                Log.e("AddPacket", msg.obj.toString());
+            case MSG_SET_STATUS:
+                Log.e("StatusPacket", (String) msg.obj);
+                if (statusListener != null) {
+                    statusListener.onStatus((String) msg.obj);
+                }
                 break;
             case MSG_ERROR:
                 Log.e("ErrorPacket", msg.obj.toString());
+                if (errorListener != null) {
+                    errorListener.onError((Throwable) msg.obj);
+                }
                 break;
             default:
                 Log.w(TAG, "unknown activity message code: " + msg);
@@ -98,12 +236,79 @@ public class IPCHandler extends Handler {
         }
     }
 
+    /**
+     * Deliver the packets received since the last flush as one
+     * batch, dropping exact duplicates (same payload and source).
+     */
+    private void flush() {
+        // clear the flag first, so a packet added while we drain
+        // schedules another flush rather than being stranded
+        flushScheduled.set(false);
+        lastFlush = SystemClock.uptimeMillis();
+
+        List<Packet> batch = new ArrayList<Packet>();
+        Set<Long> seen = new HashSet<Long>();
+        Packet packet;
+        while ((packet = pendingPackets.poll()) != null) {
+            if (seen.add(packet.hash)) {
+                batch.add(packet);
+            }
+        }
+        if (!batch.isEmpty()) {
+            handlePackets(batch);
+        }
+    }
+
+    /**
+     * Answer or report a batch of received packets, going by the
+     * names they ask for.  Nothing here formats a packet as text.
+     */
+    private void handlePackets(List<Packet> packets) {
+        if (packetListener != null) {
+            packetListener.onPackets(packets);
+        }
+
+        List<DNSData> responses = null;
+        boolean requested = false;
+        for (Packet packet : packets) {
+            if (packet.hasQuestion(IP_REQUEST_NAME)) {
+                Log.e(TAG, "Sending response to " + packet.src);
+                requested = true;
+            } else if (packet.hasQuestion(IP_RESPONSE_NAME)) {
+                Log.e("DNSData", "Receive response from: " + packet.src);
+                if (responses == null) {
+                    responses = new ArrayList<DNSData>();
+                }
+                responses.add(new DNSData(packet));
+            }
+        }
+
+        // one reply answers every request in the batch
+        if (requested) {
+            try {
+                netThread.submitQuery(IpResponse);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        if (responses != null && listener != null) {
+            listener.onResponses(responses);
+        }
+    }
+
     public void setStatus(String status) {
         sendMessage(Message.obtain(this, MSG_SET_STATUS, status));
     }
 
+    /**
+     * Queue a packet for the next batch.  Called from the network
+     * thread; it only posts a message if no flush is pending.
+     */
     public void addPacket(Packet packet) {
-        sendMessage(Message.obtain(this, MSG_ADD_PACKET, packet));
+        pendingPackets.offer(packet);
+        if (flushScheduled.compareAndSet(false, true)) {
+            sendEmptyMessageAtTime(MSG_FLUSH, lastFlush + batchInterval);
+        }
     }
 
     public void error(Throwable throwable) {
@@ -114,10 +319,23 @@ public class IPCHandler extends Handler {
 
         if (netThread != null) {
             Log.e(TAG, "netThread should be null!");
+            getConnectivityManager().unregisterNetworkCallback(networkCallback);
             netThread.submitQuit();
         }
-        netThread = new NetThread(this, context);
-        netThread.start();
+        NetThread thread = new NetThread(this, subscriptions, context);
+        thread.setParserThreads(parserThreads);
+        thread.setWaitStrategy(waitStrategy);
+        thread.setBurstLimit(burstLimit);
+        thread.setCoalescingWindow(coalescingWindow);
+        thread.answerQueriesFor(IpRequest);
+        thread.answerQueriesFor(IpResponse);
+        netThread = thread;
+        thread.start();
+
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .build();
+        getConnectivityManager().registerNetworkCallback(request, networkCallback);
     }
 
     public void stopMDNS(){
@@ -125,6 +343,7 @@ public class IPCHandler extends Handler {
             Log.e(TAG, "netThread should not be null!");
             return;
         }
+        getConnectivityManager().unregisterNetworkCallback(networkCallback);
         netThread.submitQuit();
         netThread = null;
     }
@@ -136,4 +355,36 @@ public class IPCHandler extends Handler {
     public void replyRequest(){
         netThread.submitQuery(IpResponse);
     }
+
+    public CompletableFuture<List<DNSAnswer>> resolve(String host, int type, long timeout){
+        return netThread.resolve(host, type, timeout);
+    }
+
+    public CompletableFuture<List<DNSServiceInfo>> resolveServices(String serviceType, long timeout){
+        return netThread.resolveServices(serviceType, timeout);
+    }
+
+    public void startContinuousQuery(String host, int type){
+        netThread.startContinuousQuery(host, type);
+    }
+
+    public void stopContinuousQuery(String host, int type){
+        netThread.stopContinuousQuery(host, type);
+    }
+
+    /**
+     * Re-send the standing queries soon, e.g. after joining another
+     * network.  Called by the connectivity callback while the network
+     * thread runs.
+     */
+    public void networkChanged(){
+        NetThread thread = netThread;
+        if (thread != null) {
+            thread.submitNetworkChanged();
+        }
+    }
+
+    private ConnectivityManager getConnectivityManager(){
+        return (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
 }
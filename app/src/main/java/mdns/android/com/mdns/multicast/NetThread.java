@@ -3,18 +3,36 @@ package mdns.android.com.mdns.multicast;
 
 import android.content.Context;
 import android.net.wifi.WifiManager.MulticastLock;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 
+import mdns.android.com.mdns.dns.DNSAnswer;
+import mdns.android.com.mdns.dns.DNSBuffer;
+import mdns.android.com.mdns.dns.DNSComponent;
 import mdns.android.com.mdns.dns.DNSMessage;
+import mdns.android.com.mdns.dns.DNSName;
+import mdns.android.com.mdns.dns.DNSNameCompressor;
+import mdns.android.com.mdns.dns.DNSQuestion;
+import mdns.android.com.mdns.dns.DNSRdata;
+import mdns.android.com.mdns.dns.DNSServiceInfo;
 
 /**
  * This thread runs in the background while the user has our
@@ -32,12 +50,109 @@ public class NetThread extends Thread {
 
     private static final int BUFFER_SIZE = 4096;
 
+    // the largest packet we send: an Ethernet MTU less the IPv4
+    // and UDP headers
+    private static final int MAX_PACKET_LENGTH = 1472;
+
+    // how long after sending a query its responses are wanted
+    private static final long RESPONSE_WINDOW = 5000;
+
+    // the number of receive buffers between this thread and each
+    // parser, per lane; answers to our own queries take the
+    // priority lane, which the parser drains first
+    private static final int RING_SIZE = 64;
+    private static final int PRIORITY_LANE = 0;
+    private static final int NORMAL_LANE = 1;
+
+    // the packets each source may send: a burst, then a steady rate
+    // per second
+    private static final int SOURCE_BURST = 50;
+    private static final int SOURCE_RATE = 20;
+    private static final int SOURCE_TABLE_SIZE = 128;
+
+    // how many recent packets are remembered, and for how long, to
+    // drop exact repeats
+    private static final int DUPLICATE_FILTER_SIZE = 256;
+    private static final long DUPLICATE_WINDOW = 1000;
+
+    // the default number of datagrams read per wakeup
+    static final int DEFAULT_BURST_LIMIT = 32;
+
+    // the default time queries are held so that they can be sent
+    // together
+    static final long DEFAULT_COALESCING_WINDOW = 20;
+
     private NetworkInterface networkInterface;
     private InetAddress groupAddress;
-    private MulticastSocket multicastSocket;
+    private InetSocketAddress mdnsAddress;
+    private DatagramChannel channel;
+    private volatile Selector selector;
     private NetUtil netUtil;
     private Context context;
     private IPCHandler ipcHandler;
+    private SubscriptionRegistry subscriptions;
+    private PacketClassifier classifier;
+    private final InetSocketAddress localAddress = new InetSocketAddress(MDNS_PORT);
+
+    // the receive pipeline; configured before the thread starts
+    private int parserThreads = 1;
+    private PacketRing.WaitStrategy waitStrategy = PacketRing.WaitStrategy.BLOCKING;
+    private PacketRing[] rings;
+    private int burstLimit = DEFAULT_BURST_LIMIT;
+    private volatile long overflowCount;
+
+    // receives each packet, and is exchanged for the buffer of the
+    // ring slot the packet is handed on in
+    private ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private Set<InetAddress> localAddresses;
+
+    // the packets received in the last second, to drop repeats
+    private final DuplicateFilter duplicateFilter =
+            new DuplicateFilter(DUPLICATE_FILTER_SIZE, DUPLICATE_WINDOW);
+
+    // so that no one device can take all of our parsing
+    private final SourceRateLimiter rateLimiter =
+            new SourceRateLimiter(SOURCE_TABLE_SIZE, SOURCE_RATE, SOURCE_BURST);
+
+    // reports subscribers' listeners that throw
+    private final IPCHandler.ErrorListener listenerErrors = new IPCHandler.ErrorListener() {
+        @Override
+        public void onError(Throwable throwable) {
+            Log.e(TAG, throwable.toString());
+            ipcHandler.error(throwable);
+        }
+    };
+
+    // reused for every transmission
+    private final ByteBuffer requestBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final DNSBuffer requestDNSBuffer = new DNSBuffer(requestBuffer);
+
+    // questions waiting for the coalescing window to close
+    private final List<DNSQuestion> pendingQuestions = new ArrayList<DNSQuestion>();
+    private final DNSNameCompressor questionSizer = new DNSNameCompressor();
+    private long flushDeadline = -1;
+    private volatile long coalescingWindow = DEFAULT_COALESCING_WINDOW;
+
+    // every record we have seen, until its TTL runs out
+    private final RecordCache recordCache = new RecordCache(SystemClock.elapsedRealtime());
+
+    // standing queries, which feed the coalescer as they come due
+    private final QueryScheduler queryScheduler = new QueryScheduler(recordCache,
+            new QueryScheduler.Sender() {
+                @Override
+                public void sendQuery(DNSQuestion question) {
+                    addQuery(question);
+                }
+            }, SystemClock.elapsedRealtime());
+
+    // one-shot lookups waiting for an answer
+    private final Resolver resolver = new Resolver(recordCache,
+            new Resolver.Sender() {
+                @Override
+                public void sendQuery(DNSQuestion question) {
+                    addQuery(question);
+                }
+            }, SystemClock.elapsedRealtime());
 //    private MainActivity activity;
 
     /**
@@ -45,39 +160,69 @@ public class NetThread extends Thread {
      *
      * @param context
      */
-    public NetThread(IPCHandler ipcHandler, Context context) {
+    public NetThread(IPCHandler ipcHandler, SubscriptionRegistry subscriptions, Context context) {
         super("net");
         this.context = context;
         this.ipcHandler = ipcHandler;
+        this.subscriptions = subscriptions;
+        this.classifier = new PacketClassifier(subscriptions);
         netUtil = new NetUtil(context);
     }
 
     /**
-     * Open a multicast socket on the mDNS address and port.
+     * Open a non-blocking datagram channel on the mDNS port, join
+     * the mDNS group on our interface, and register the channel
+     * with a fresh selector.  The group membership is kept for the
+     * whole life of the thread.
      *
      * @throws IOException
      */
-    private void openSocket() throws IOException {
-        multicastSocket = new MulticastSocket(MDNS_PORT);
-        multicastSocket.setTimeToLive(2);
-        multicastSocket.setReuseAddress(true);
-        multicastSocket.setNetworkInterface(networkInterface);
-        multicastSocket.joinGroup(groupAddress);
+    private void openChannel() throws IOException {
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 2);
+        channel.bind(new InetSocketAddress(MDNS_PORT));
+        channel.join(groupAddress, networkInterface);
+        channel.configureBlocking(false);
+
+        Selector newSelector = Selector.open();
+        channel.register(newSelector, SelectionKey.OP_READ);
+        selector = newSelector;
+    }
+
+    /**
+     * Close the selector and the channel.  Closing the channel
+     * also drops the group membership.
+     */
+    private void closeChannel() {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+        }
     }
 
     /**
      * The main network loop.  Multicast DNS packets are received,
-     * processed, and sent to the UI.
+     * classified, and handed to the parser threads through a ring of
+     * buffers per parser, so receiving never waits for parsing.
      * <p/>
-     * This loop may be interrupted by closing the multicastSocket,
-     * at which time any commands in the commandQueue will be
-     * processed.
+     * The loop blocks in the selector until the channel is readable
+     * or another thread calls {@link Selector#wakeup()} after adding
+     * a command to the commandQueue.  Commands are always processed
+     * before waiting again, so a wakeup is never lost.
      */
     @Override
     public void run() {
         Log.v(TAG, "starting network thread");
 
-        Set<InetAddress> localAddresses = NetUtil.getLocalAddresses();
+        localAddresses = NetUtil.getLocalAddresses();
         MulticastLock multicastLock = null;
 
         // initialize the network
@@ -87,14 +232,19 @@ public class NetThread extends Thread {
                 throw new IOException("Your WiFi is not enabled.");
             }
             groupAddress = InetAddress.getByAddress(MDNS_ADDR);
+            mdnsAddress = new InetSocketAddress(groupAddress, MDNS_PORT);
 
             multicastLock = netUtil.getWifiManager().createMulticastLock("unmote");
             multicastLock.acquire();
             //Log.v(TAG, "acquired multicast lock: "+multicastLock);
 
-            openSocket();
+            openChannel();
         } catch (IOException e1) {
             e1.printStackTrace();
+            closeChannel();
+            if (multicastLock != null) {
+                multicastLock.release();
+            }
             ipcHandler.setStatus("cannot initialize network");
             ipcHandler.error(e1);
 //            activity.ipc.setStatus("cannot initialize network.");
@@ -102,91 +252,417 @@ public class NetThread extends Thread {
             return;
         }
 
-        // set up the buffer for incoming packets
-        byte[] responseBuffer = new byte[BUFFER_SIZE];
-        DatagramPacket response = new DatagramPacket(responseBuffer, BUFFER_SIZE);
+        // set up a ring of buffers for incoming packets per parser
+        // (direct, so the channel can receive into them without an
+        // intermediate copy; the messages are parsed in place), and
+        // start the parsers that drain them
+        rings = new PacketRing[parserThreads];
+        ParserThread[] parsers = new ParserThread[parserThreads];
+        for (int i = 0; i < parsers.length; i++) {
+            rings[i] = new PacketRing(2, RING_SIZE, BUFFER_SIZE, waitStrategy);
+            parsers[i] = new ParserThread(i, rings[i]);
+            parsers[i].start();
+        }
 
         // loop!
         while (true) {
-            // zero the incoming buffer for good measure.
-            java.util.Arrays.fill(responseBuffer, (byte) 0); // clear buffer
+            // process any commands submitted since the last wakeup
+            if (!processCommands()) {
+                break;
+            }
 
-            // receive a packet (or process an incoming command)
+            // queue the standing queries that are due, send the
+            // pending queries once their window closes, and expire
+            // cached records
+            long now = SystemClock.elapsedRealtime();
+            queryScheduler.advance(now);
+            resolver.advance(now);
+            if (flushDeadline >= 0 && now >= flushDeadline) {
+                flushQueries();
+            }
+            recordCache.expire(now);
+
+            // wait for a packet (or a wakeup) until the next timer
+            long deadline = earliest(recordCache.nextExpiryCheck(), flushDeadline);
+            deadline = earliest(deadline, queryScheduler.nextDeadline());
+            deadline = earliest(deadline, resolver.nextDeadline());
             try {
-                multicastSocket.receive(response);
-            } catch (IOException e) {
-                // check for commands to be run
-                Command cmd = commandQueue.poll();
-                if (cmd == null) {
-                    Log.e(TAG, e.toString());
-                    ipcHandler.error(e);
-//                    activity.ipc.error(e);
-                    return;
+                if (deadline < 0) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, deadline - now));
                 }
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+                ipcHandler.error(e);
+                break;
+            }
+            if (selector.selectedKeys().isEmpty()) {
+                continue;
+            }
+            selector.selectedKeys().clear();
 
-                // reopen the socket
-                try {
-                    openSocket();
-                } catch (IOException e1) {
-                    Log.e(TAG, e1.toString());
-                    ipcHandler.error(new RuntimeException("socket reopen: " + e1.getMessage()));
-                    return;
+            // drain the socket, and hand what was read to the
+            // parsers as one batch
+            try {
+                receiveBurst();
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+                ipcHandler.error(e);
+                break;
+            } finally {
+                for (PacketRing ring : rings) {
+                    ring.publishStaged();
                 }
+            }
+        }
 
-                // process commands
-                if (cmd instanceof QueryCommand) {
-                    try {
-                        query(((QueryCommand) cmd).host);
-                    } catch (IOException e1) {
-                        Log.e(TAG, e1.toString());
-                        ipcHandler.error(e1);
-                    }
-                } else if (cmd instanceof QuitCommand) {
-                    break;
-                }
+        // let the parsers finish what has been received
+        for (PacketRing ring : rings) {
+            ring.close();
+        }
+        for (ParserThread parser : parsers) {
+            try {
+                parser.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-                continue;
+        resolver.cancelAll();
+        closeChannel();
+
+        // release the multicast lock
+        multicastLock.release();
+
+        Log.v(TAG, "stopping network thread");
+    }
+
+    /**
+     * Read datagrams without blocking until the socket is empty or
+     * the burst limit is reached, staging each one wanted in a slot
+     * of its parser's ring.  Reading a whole burst per wakeup saves
+     * a select and a wakeup per packet when every device on the
+     * network answers at once.  The caller publishes the staged
+     * slots.
+     *
+     * @throws IOException
+     */
+    private void receiveBurst() throws IOException {
+        long now = SystemClock.elapsedRealtime();
+        for (int n = 0; n < burstLimit; n++) {
+            ByteBuffer buffer = receiveBuffer;
+            buffer.clear();
+            InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+            if (source == null) {
+                return;
             }
 
             // ignore our own packet transmissions.
-            if (localAddresses.contains(response.getAddress())) {
+            if (localAddresses.contains(source.getAddress())) {
                 continue;
             }
 
-            // parse the DNS packet
-            DNSMessage message;
-            try {
-                message = new DNSMessage(response.getData(), response.getOffset(), response.getLength());
-            } catch (Exception e) {
-                e.printStackTrace();
-                ipcHandler.error(e);
+            // shed the load from sources sending more than their share
+            if (!rateLimiter.allow(source.getAddress(), now)) {
+                continue;
+            }
+
+            // drop the packets with nothing for us after looking at
+            // no more than their names
+            buffer.flip();
+            int kind = classifier.classify(buffer, now);
+            if (kind == PacketClassifier.NOISE) {
+                continue;
+            }
+
+            // and the copies of packets we have just seen
+            long hash = Packet.hash(buffer, source);
+            if (duplicateFilter.isDuplicate(hash, now)) {
+                continue;
+            }
+
+            // every packet from a host goes to the same parser, so
+            // its records reach the cache in the order it sent them.
+            // Answers to our queries take the priority lane, or the
+            // normal one if that is full; other packets only the
+            // normal lane.  A packet without a free slot is dropped,
+            // since the parser is a whole lane behind.
+            PacketRing ring = rings[(source.getAddress().hashCode() & 0x7FFFFFFF) % rings.length];
+            PacketRing.Slot slot = null;
+            if (kind == PacketClassifier.ANSWER) {
+                slot = ring.claim(PRIORITY_LANE);
+            }
+            if (slot == null) {
+                slot = ring.claim(NORMAL_LANE);
+            }
+            if (slot == null) {
+                overflowCount++;
                 continue;
             }
 
-            // send the packet to the UI
-            Packet packet = new Packet(response, multicastSocket);
-            packet.description = message.toString().trim();
-            ipcHandler.addPacket(packet);
-            Log.e(TAG, packet.toString());
+            // hand the packet over by exchanging buffers, not copying
+            receiveBuffer = slot.exchangeBuffer(buffer);
+            slot.source = source;
+            slot.kind = kind;
+            slot.hash = hash;
+            ring.stage(slot);
         }
+    }
 
-        // release the multicast lock
-        multicastLock.release();
+    /**
+     * Parses the packets in one ring: caches their records,
+     * completes the lookups they answer, routes them to subscribers
+     * and reports them to the UI.  Everything a packet refers to is
+     * detached from its slot before the slot is released.
+     */
+    private class ParserThread extends Thread {
 
-        Log.v(TAG, "stopping network thread");
+        private final PacketRing ring;
+
+        public ParserThread(int index, PacketRing ring) {
+            super("net-parser-" + index);
+            this.ring = ring;
+        }
+
+        @Override
+        public void run() {
+            PacketRing.Slot slot;
+            while ((slot = ring.take()) != null) {
+                // a bad packet (or a failing component) costs that
+                // packet, never the parser
+                try {
+                    parse(slot);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, e.toString());
+                    ipcHandler.error(e);
+                } finally {
+                    ring.release(slot);
+                }
+            }
+        }
+
+        private void parse(PacketRing.Slot slot) {
+            DNSMessage message = new DNSMessage(slot.getBuffer());
+
+            // remember the records, complete the lookups they answer,
+            // and hand them to the components that asked for them
+            long now = SystemClock.elapsedRealtime();
+            List<DNSAnswer> records = message.getRecords();
+            recordCache.addAll(records, now);
+            resolver.onRecords(records, now);
+            subscriptions.route(records, listenerErrors);
+
+            // send the packet to the UI, unless it only fed the cache
+            if (slot.kind == PacketClassifier.UNSOLICITED) {
+                return;
+            }
+            message.detach();
+            ipcHandler.addPacket(new Packet(slot.source, localAddress, networkInterface, message, slot.hash));
+        }
     }
 
     /**
-     * Transmit an mDNS query on the local network.
+     * Set the number of threads that parse received packets.  Must
+     * be called before the thread is started.
+     * <p/>
+     * Each host's packets always go to the same parser, so they are
+     * parsed in the order they arrived (except that answers to our
+     * own queries may overtake the host's other packets when the
+     * parser falls behind), and a goodbye is never applied before
+     * the announcement it follows.  Packets from different hosts
+     * are parsed concurrently, so subscribers' listeners are called
+     * concurrently.
+     */
+    public void setParserThreads(int count) {
+        parserThreads = Math.max(1, count);
+    }
+
+    /**
+     * Set how the parser threads wait for packets.  Must be called
+     * before the thread is started.
+     */
+    public void setWaitStrategy(PacketRing.WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Set the most datagrams read per wakeup.  Must be called before
+     * the thread is started.
+     */
+    public void setBurstLimit(int limit) {
+        burstLimit = Math.max(1, limit);
+    }
+
+    /**
+     * Return the number of packets dropped because every buffer in
+     * their parser's ring was waiting to be parsed.
+     */
+    public long getDroppedOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Return the number of received packets dropped unparsed as
+     * exact repeats of a packet from the last second.
+     */
+    public long getDroppedDuplicateCount() {
+        return duplicateFilter.getDuplicateCount();
+    }
+
+    /**
+     * Return the number of received packets dropped because their
+     * source was sending too fast.
+     */
+    public long getDroppedRateLimitedCount() {
+        return rateLimiter.getDroppedCount();
+    }
+
+    /**
+     * Parse and report the queries for the given name.  Queries for
+     * any other name are dropped unparsed.
+     */
+    public void answerQueriesFor(String host) {
+        classifier.addAnsweredName(DNSName.of(host));
+    }
+
+    /**
+     * Return the number of received packets dropped unparsed.
+     */
+    public long getDroppedNoiseCount() {
+        return classifier.getNoiseCount();
+    }
+
+    /**
+     * Return the cache of records seen by this thread.
+     */
+    public RecordCache getRecordCache() {
+        return recordCache;
+    }
+
+    /**
+     * Run all queued commands.
+     *
+     * @return false if the thread has been asked to quit
+     */
+    private boolean processCommands() {
+        Command cmd;
+        while ((cmd = commandQueue.poll()) != null) {
+            if (cmd instanceof QueryCommand) {
+                addQuery(((QueryCommand) cmd).question);
+            } else if (cmd instanceof ContinuousQueryCommand) {
+                ContinuousQueryCommand cqc = (ContinuousQueryCommand) cmd;
+                if (cqc.start) {
+                    queryScheduler.start(cqc.question, SystemClock.elapsedRealtime());
+                } else {
+                    queryScheduler.stop(cqc.question);
+                }
+            } else if (cmd instanceof ResolveCommand) {
+                ResolveCommand rc = (ResolveCommand) cmd;
+                resolver.resolve(rc.question, rc.timeout, rc.future, SystemClock.elapsedRealtime());
+            } else if (cmd instanceof NetworkChangedCommand) {
+                queryScheduler.reset(SystemClock.elapsedRealtime());
+            } else if (cmd instanceof QuitCommand) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hold a question until the coalescing window closes, so that
+     * queries submitted together go out in as few packets as
+     * possible.  A question that is already pending is dropped.
+     *
+     * @param question
+     */
+    private void addQuery(DNSQuestion question) {
+        for (DNSQuestion q : pendingQuestions) {
+            if (q.typeCode == question.typeCode && q.name.equals(question.name)) {
+                return;
+            }
+        }
+        pendingQuestions.add(question);
+        if (flushDeadline < 0) {
+            flushDeadline = SystemClock.elapsedRealtime() + coalescingWindow;
+        }
+    }
+
+    /**
+     * Transmit the pending questions as mDNS queries on the local
+     * network, packing as many questions into each packet as the
+     * MTU allows.
+     */
+    private void flushQueries() {
+        List<DNSQuestion> group = new ArrayList<DNSQuestion>();
+        questionSizer.reset();
+        int length = 12; // header length
+        for (DNSQuestion question : pendingQuestions) {
+            int questionLength = question.length(questionSizer, length);
+            if (length + questionLength > MAX_PACKET_LENGTH && !group.isEmpty()) {
+                query(group);
+                group = new ArrayList<DNSQuestion>();
+                questionSizer.reset();
+                length = 12;
+                questionLength = question.length(questionSizer, length);
+            }
+            group.add(question);
+            length += questionLength;
+        }
+        if (!group.isEmpty()) {
+            query(group);
+        }
+        pendingQuestions.clear();
+        flushDeadline = -1;
+    }
+
+    /**
+     * Transmit one mDNS query on the local network, along with
+     * the answers we already hold so that responders don't send
+     * them again.
      *
-     * @param host
+     * @param questions
+     */
+    private void query(List<DNSQuestion> questions) {
+        long now = SystemClock.elapsedRealtime();
+        List<DNSAnswer> knownAnswers = new ArrayList<DNSAnswer>();
+        for (DNSQuestion question : questions) {
+            knownAnswers.addAll(recordCache.getKnownAnswers(question.name, question.typeCode, now));
+            classifier.watch(question.name, now + RESPONSE_WINDOW, now);
+        }
+        try {
+            for (DNSMessage message : DNSMessage.query(questions, knownAnswers, MAX_PACKET_LENGTH)) {
+                send(message);
+            }
+        } catch (IOException e1) {
+            Log.e(TAG, e1.toString());
+            ipcHandler.error(e1);
+        }
+    }
+
+    /**
+     * Return the earlier of two deadlines, where -1 means none.
+     */
+    private static long earliest(long a, long b) {
+        if (a < 0) {
+            return b;
+        }
+        return (b < 0) ? a : Math.min(a, b);
+    }
+
+    /**
+     * Serialize a message into the request buffer and send it to
+     * the mDNS group.
+     *
+     * @param message
      * @throws IOException
      */
-    private void query(String host) throws IOException {
-        byte[] requestData = (new DNSMessage(host)).serialize();
-        DatagramPacket request =
-                new DatagramPacket(requestData, requestData.length, InetAddress.getByAddress(MDNS_ADDR), MDNS_PORT);
-        multicastSocket.send(request);
+    private void send(DNSMessage message) throws IOException {
+        requestDNSBuffer.reset();
+        int length = message.serialize(requestDNSBuffer);
+        requestBuffer.clear();
+        requestBuffer.limit(length);
+        channel.send(requestBuffer, mdnsAddress);
     }
 
     // inter-process communication
@@ -201,22 +677,162 @@ public class NetThread extends Thread {
     }
 
     private static class QueryCommand extends Command {
-        public QueryCommand(String host) {
-            this.host = host;
+        public QueryCommand(DNSQuestion question) {
+            this.question = question;
+        }
+
+        public DNSQuestion question;
+    }
+
+    private static class ContinuousQueryCommand extends Command {
+        public ContinuousQueryCommand(DNSQuestion question, boolean start) {
+            this.question = question;
+            this.start = start;
+        }
+
+        public DNSQuestion question;
+        public boolean start;
+    }
+
+    private static class ResolveCommand extends Command {
+        public ResolveCommand(DNSQuestion question, long timeout,
+                              CompletableFuture<List<DNSAnswer>> future) {
+            this.question = question;
+            this.timeout = timeout;
+            this.future = future;
         }
 
-        public String host;
+        public DNSQuestion question;
+        public long timeout;
+        public CompletableFuture<List<DNSAnswer>> future;
+    }
+
+    private static class NetworkChangedCommand extends Command {
     }
 
     public void submitQuery(String host) {
-        commandQueue.offer(new QueryCommand(host));
-        multicastSocket.close();
+        submitQuery(host, DNSComponent.Type.ANY.qtype);
+    }
+
+    /**
+     * Queue a query for the given name and type.  Queries submitted
+     * within the coalescing window of each other are sent together.
+     */
+    public void submitQuery(String host, int type) {
+        commandQueue.offer(new QueryCommand(new DNSQuestion(type, DNSName.of(host))));
+        wakeup();
+    }
+
+    /**
+     * Set how long, in milliseconds, a query is held so that queries
+     * submitted soon after can share its packet.  Zero sends each
+     * batch of queued queries as soon as it is seen.
+     */
+    public void setCoalescingWindow(long millis) {
+        coalescingWindow = millis;
+    }
+
+    /**
+     * Look up the records for a name and type.  The future completes
+     * with the first answers to arrive (or at once, if they are
+     * cached), or fails with a {@link java.util.concurrent.TimeoutException}.
+     * Concurrent lookups of the same name and type share one query.
+     * The future is completed on whichever thread settles it: the
+     * caller's if the answers are cached, a parser thread when they
+     * arrive, or the network thread on a timeout.  Continuations
+     * should not block.
+     *
+     * @param timeout in milliseconds
+     */
+    public CompletableFuture<List<DNSAnswer>> resolve(String host, int type, long timeout) {
+        DNSName name = DNSName.of(host);
+        List<DNSAnswer> answers = recordCache.getAnswers(name, type, SystemClock.elapsedRealtime());
+        if (!answers.isEmpty()) {
+            return CompletableFuture.completedFuture(answers);
+        }
+        CompletableFuture<List<DNSAnswer>> future = new CompletableFuture<List<DNSAnswer>>();
+        commandQueue.offer(new ResolveCommand(new DNSQuestion(type, name), timeout, future));
+        wakeup();
+        return future;
+    }
+
+    /**
+     * Look up the instances of a DNS-SD service type, for example
+     * _http._tcp.local.  Once the PTR records arrive, each instance
+     * is filled in from the SRV, TXT and address records in the
+     * cache, which responders usually send along in the additional
+     * section of the same response.  Instances whose records did not
+     * come along are returned unresolved.
+     *
+     * @param timeout in milliseconds
+     */
+    public CompletableFuture<List<DNSServiceInfo>> resolveServices(String serviceType, long timeout) {
+        final DNSName type = DNSName.of(serviceType);
+        return resolve(serviceType, DNSComponent.Type.PTR.qtype, timeout).thenApply(
+                new Function<List<DNSAnswer>, List<DNSServiceInfo>>() {
+                    @Override
+                    public List<DNSServiceInfo> apply(List<DNSAnswer> pointers) {
+                        return getServices(type, pointers);
+                    }
+                });
+    }
+
+    private List<DNSServiceInfo> getServices(DNSName serviceType, List<DNSAnswer> pointers) {
+        long now = SystemClock.elapsedRealtime();
+        int any = DNSComponent.Type.ANY.qtype;
+        List<DNSAnswer> records = new ArrayList<DNSAnswer>(pointers);
+        for (DNSAnswer pointer : pointers) {
+            if (!(pointer.data instanceof DNSRdata.Name)) {
+                continue;
+            }
+            DNSName instance = ((DNSRdata.Name) pointer.data).name;
+            for (DNSAnswer record : recordCache.getAnswers(instance, any, now)) {
+                records.add(record);
+                if (record.data instanceof DNSRdata.Srv) {
+                    records.addAll(recordCache.getAnswers(((DNSRdata.Srv) record.data).target, any, now));
+                }
+            }
+        }
+        return DNSServiceInfo.resolve(records, serviceType);
+    }
+
+    /**
+     * Keep querying for the given name and type, backing off
+     * exponentially, until {@link #stopContinuousQuery} is called.
+     */
+    public void startContinuousQuery(String host, int type) {
+        commandQueue.offer(new ContinuousQueryCommand(new DNSQuestion(type, DNSName.of(host)), true));
+        wakeup();
+    }
+
+    public void stopContinuousQuery(String host, int type) {
+        commandQueue.offer(new ContinuousQueryCommand(new DNSQuestion(type, DNSName.of(host)), false));
+        wakeup();
+    }
+
+    /**
+     * Tell the thread that the network has changed, so that the
+     * standing queries start over from their shortest interval.
+     */
+    public void submitNetworkChanged() {
+        commandQueue.offer(new NetworkChangedCommand());
+        wakeup();
     }
 
     public void submitQuit() {
         commandQueue.offer(new QuitCommand());
-        if (multicastSocket != null) {
-            multicastSocket.close();
+        wakeup();
+    }
+
+    /**
+     * Wake the network loop so it picks up new commands.  If the
+     * selector is not open yet, the loop will see the command when
+     * it first starts.
+     */
+    private void wakeup() {
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
         }
     }
 
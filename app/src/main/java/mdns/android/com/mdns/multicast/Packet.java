@@ -1,26 +1,110 @@
 package mdns.android.com.mdns.multicast;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import mdns.android.com.mdns.dns.DNSAnswer;
+import mdns.android.com.mdns.dns.DNSMessage;
+import mdns.android.com.mdns.dns.DNSName;
+import mdns.android.com.mdns.dns.DNSQuestion;
 
 /**
  * Encapsulate packet details that we are interested in.
+ * <p/>
+ * A received packet carries its parsed message, detached from the
+ * receive buffer, so listeners get the questions and records as
+ * objects.  The human-readable description is only built if
+ * someone asks for it.
+ * <p/>
+ * A packet is not changed once it has been handed on, so it may be
+ * read from any thread.
  */
 public class Packet {
-    public InetAddress src;
-    public int srcPort;
-    public InetAddress dst;
-    public int dstPort;
-    public String description;
+    public final InetAddress src;
+    public final int srcPort;
+    public final InetAddress dst;
+    public final int dstPort;
+    public final NetworkInterface networkInterface;
+    public final DNSMessage message;
+    /**
+     * A hash of the payload and the source; see {@link #hash}.
+     */
+    public final long hash;
+    private String description;
+
+    /**
+     * @param message a parsed message that no longer refers to the
+     *                receive buffer (see {@link DNSMessage#detach()})
+     */
+    public Packet(InetSocketAddress source, InetSocketAddress local,
+                  NetworkInterface networkInterface, DNSMessage message, long hash) {
+        src = source.getAddress();
+        srcPort = source.getPort();
+        dst = local.getAddress();
+        dstPort = local.getPort();
+        this.networkInterface = networkInterface;
+        this.message = message;
+        this.hash = hash;
+    }
+
+    /**
+     * Hash a received payload (the bytes between the position and
+     * the limit) together with its source, with 64-bit FNV-1a.  The
+     * buffer itself is not changed.
+     */
+    public static long hash(ByteBuffer payload, InetSocketAddress source) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = payload.position(); i < payload.limit(); i++) {
+            hash = (hash ^ (payload.get(i) & 0xFF)) * 0x100000001b3L;
+        }
+        hash = (hash ^ source.getAddress().hashCode()) * 0x100000001b3L;
+        hash = (hash ^ source.getPort()) * 0x100000001b3L;
+        return hash;
+    }
+
+    public boolean isResponse() {
+        return message != null && message.isResponse();
+    }
+
+    public List<DNSQuestion> getQuestions() {
+        return (message != null) ? message.getQuestions() : Collections.<DNSQuestion>emptyList();
+    }
+
+    /**
+     * Return the records of every section.
+     */
+    public List<DNSAnswer> getRecords() {
+        return (message != null) ? message.getRecords() : Collections.<DNSAnswer>emptyList();
+    }
+
+    /**
+     * Return true if the packet has a question for the given name.
+     */
+    public boolean hasQuestion(DNSName name) {
+        for (DNSQuestion question : getQuestions()) {
+            if (question.name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-    public Packet() {
+    /**
+     * Return the message as text: the questions, then the records
+     * grouped by name.
+     */
+    public String getDescription() {
+        if (description == null) {
+            description = (message != null) ? message.toString().trim() : "";
+        }
+        return description;
     }
 
-    public Packet(DatagramPacket dp, DatagramSocket socket) {
-        src = dp.getAddress();
-        srcPort = dp.getPort();
-        dst = socket.getLocalAddress();
-        dstPort = socket.getLocalPort();
+    public String toString() {
+        return src + ":" + srcPort + " -> " + dst + ":" + dstPort + "\n" + getDescription();
     }
 }
@@ -0,0 +1,229 @@
+package mdns.android.com.mdns.multicast;
+
+import java.nio.ByteBuffer;
+
+import mdns.android.com.mdns.dns.DNSBuffer;
+import mdns.android.com.mdns.dns.DNSMessage;
+import mdns.android.com.mdns.dns.DNSName;
+
+/**
+ * Decides from the header and the owner names alone whether a
+ * received packet is worth a full parse.
+ * <p/>
+ * A packet is one of:
+ * <ul>
+ * <li>{@link #QUERY}: a query asking for a name we answer,</li>
+ * <li>{@link #ANSWER}: a response with an answer for a name we
+ * queried recently, which is worth handling first,</li>
+ * <li>{@link #RESPONSE}: a response with an answer that a subscriber
+ * might want,</li>
+ * <li>{@link #UNSOLICITED}: any other response with records, which
+ * is parsed only to feed the record cache,</li>
+ * <li>{@link #NOISE}: anything else, including malformed packets.</li>
+ * </ul>
+ * Names are compared by the same case-insensitive hashes that
+ * {@link DNSName} uses, computed straight from the packet with one
+ * reused {@link DNSBuffer}, so classifying allocates nothing and
+ * never builds a name.  A hash collision can only make a packet look
+ * more interesting than it is, never drop a packet we want.
+ * <p/>
+ * Only the answer section of a response is looked at: responders
+ * put the records that were asked for there, and anything they add
+ * to the other sections rides along once the packet is parsed.
+ * <p/>
+ * Classifying and watching are done on the network thread; answered
+ * names may be added from any thread.
+ */
+public class PacketClassifier {
+
+    public static final int NOISE = 0;
+    public static final int QUERY = 1;
+    public static final int RESPONSE = 2;
+    public static final int ANSWER = 3;
+    public static final int UNSOLICITED = 4;
+
+    private static final int HEADER_LENGTH = 12;
+
+    private final SubscriptionRegistry subscriptions;
+
+    // hashes of the names we answer queries for; copied on write
+    private volatile int[] answeredHashes = new int[0];
+
+    // hashes of the names we have queried, and until when their
+    // responses are wanted (0 marks an empty slot)
+    private int[] watchedHashes = new int[64];
+    private long[] watchedUntil = new long[64];
+    private int watchedCount;
+
+    private final int[] nameHashes = new int[DNSName.MAX_LENGTH / 2 + 1];
+    private final DNSBuffer reader = new DNSBuffer(0);
+    private volatile long noiseCount;
+
+    public PacketClassifier(SubscriptionRegistry subscriptions) {
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * Treat queries for the given name as queries we answer.
+     */
+    public synchronized void addAnsweredName(DNSName name) {
+        int[] hashes = answeredHashes;
+        for (int hash : hashes) {
+            if (hash == name.hashCode()) {
+                return;
+            }
+        }
+        int[] grown = new int[hashes.length + 1];
+        System.arraycopy(hashes, 0, grown, 0, hashes.length);
+        grown[hashes.length] = name.hashCode();
+        answeredHashes = grown;
+    }
+
+    /**
+     * Want the responses for a name until the given time.
+     */
+    public void watch(DNSName name, long until, long now) {
+        int hash = name.hashCode();
+        int mask = watchedHashes.length - 1;
+        int i = hash & mask;
+        while (watchedUntil[i] != 0) {
+            if (watchedHashes[i] == hash) {
+                watchedUntil[i] = Math.max(watchedUntil[i], until);
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        watchedHashes[i] = hash;
+        watchedUntil[i] = until;
+        if (++watchedCount * 2 > watchedHashes.length) {
+            rehash(now);
+        }
+    }
+
+    /**
+     * Return the number of packets classified as noise.
+     */
+    public long getNoiseCount() {
+        return noiseCount;
+    }
+
+    /**
+     * Classify the packet between the position and the limit of a
+     * buffer.  The buffer itself is not changed.
+     */
+    public int classify(ByteBuffer packet, long now) {
+        int kind;
+        try {
+            reader.wrap(packet);
+            kind = classify(reader, now);
+        } catch (RuntimeException e) {
+            // truncated or malformed
+            kind = NOISE;
+        }
+        if (kind == NOISE) {
+            noiseCount++;
+        }
+        return kind;
+    }
+
+    private int classify(DNSBuffer buffer, long now) {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return NOISE;
+        }
+        buffer.readShort(); // message id
+        int flags = buffer.readShortAsInt();
+        int questionCount = buffer.readShortAsInt();
+        int answerCount = buffer.readShortAsInt();
+        int otherCount = buffer.readShortAsInt() + buffer.readShortAsInt();
+
+        if ((flags & DNSMessage.FLAG_RESPONSE) == 0) {
+            int[] answered = answeredHashes;
+            if (answered.length == 0) {
+                return NOISE;
+            }
+            for (int q = 0; q < questionCount; q++) {
+                buffer.readNameHashes(nameHashes);
+                buffer.offset += 4; // qtype, qclass
+                for (int hash : answered) {
+                    if (hash == nameHashes[0]) {
+                        return QUERY;
+                    }
+                }
+            }
+            return NOISE;
+        }
+
+        for (int q = 0; q < questionCount; q++) {
+            buffer.skipName();
+            buffer.offset += 4;
+        }
+        // every record is worth caching, even if nobody asked for it
+        int kind = (answerCount + otherCount > 0) ? UNSOLICITED : NOISE;
+        for (int a = 0; a < answerCount; a++) {
+            int labelCount = buffer.readNameHashes(nameHashes);
+            if (isWatched(nameHashes[0], now)) {
+                return ANSWER;
+            }
+            if (kind != RESPONSE && subscriptions.mightMatch(nameHashes, labelCount)) {
+                kind = RESPONSE;
+            }
+            buffer.offset += 8; // type, class, ttl
+            int rdataLength = buffer.readShortAsInt();
+            buffer.offset += rdataLength;
+            if (buffer.remaining() < 0) {
+                break;
+            }
+        }
+        return kind;
+    }
+
+    private boolean isWatched(int hash, long now) {
+        if (watchedCount == 0) {
+            return false;
+        }
+        int mask = watchedHashes.length - 1;
+        int i = hash & mask;
+        while (watchedUntil[i] != 0) {
+            if (watchedHashes[i] == hash) {
+                return watchedUntil[i] > now;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Drop the expired entries, and grow the table if it is still
+     * more than half full.
+     */
+    private void rehash(long now) {
+        int[] oldHashes = watchedHashes;
+        long[] oldUntil = watchedUntil;
+        int live = 0;
+        for (long until : oldUntil) {
+            if (until > now) {
+                live++;
+            }
+        }
+        int capacity = oldHashes.length;
+        while (live * 2 > capacity / 2) {
+            capacity *= 2;
+        }
+        watchedHashes = new int[capacity];
+        watchedUntil = new long[capacity];
+        watchedCount = 0;
+        int mask = capacity - 1;
+        for (int j = 0; j < oldHashes.length; j++) {
+            if (oldUntil[j] > now) {
+                int i = oldHashes[j] & mask;
+                while (watchedUntil[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                watchedHashes[i] = oldHashes[j];
+                watchedUntil[i] = oldUntil[j];
+                watchedCount++;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,346 @@
+package mdns.android.com.mdns.multicast;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring of preallocated packet buffers between the thread
+ * that receives datagrams and the threads that parse them.
+ * <p/>
+ * There is one producer and any number of consumers.  The producer
+ * claims a free slot, receives straight into its buffer and
+ * publishes it; a consumer takes the slot, parses the packet in
+ * place and releases the slot for reuse.  Each slot carries a
+ * sequence number that says whose turn it is, so the only shared
+ * write is the consumers' compare-and-set on the read position, and
+ * nothing is allocated per packet.
+ * <p/>
+ * The ring has one or more lanes, each with its own slots.
+ * Consumers always take from the lowest-numbered lane that has a
+ * packet, so packets in lane 0 overtake the others when the
+ * consumers fall behind.
+ * <p/>
+ * When the ring is empty, consumers wait according to the
+ * {@link WaitStrategy}.  When a lane is full, the producer does not
+ * wait: {@link #claim(int)} returns null and the caller drops the
+ * packet (or uses another lane).
+ */
+public class PacketRing {
+
+    /**
+     * How a consumer waits for the next packet.
+     */
+    public enum WaitStrategy {
+        /**
+         * Sleep on a condition until the producer signals.  Costs a
+         * wakeup per idle period but no CPU while idle.
+         */
+        BLOCKING,
+        /**
+         * Poll, yielding the CPU between polls.
+         */
+        YIELDING,
+        /**
+         * Poll without yielding.  Lowest latency, but burns a core
+         * per consumer, so only sensible with cores to spare.
+         */
+        SPINNING
+    }
+
+    /**
+     * A packet buffer and what is known about its packet.
+     */
+    public static class Slot {
+        private ByteBuffer buffer;
+        public InetSocketAddress source;
+        public int kind;
+        public long hash;
+        private final Lane lane;
+        private volatile long sequence;
+        private long position;
+
+        private Slot(Lane lane, int bufferSize, long sequence) {
+            this.lane = lane;
+            this.buffer = ByteBuffer.allocateDirect(bufferSize);
+            this.sequence = sequence;
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Give this claimed slot a buffer that already holds a
+         * packet, without copying it, and take its old buffer in
+         * exchange.
+         *
+         * @return the slot's previous buffer
+         */
+        public ByteBuffer exchangeBuffer(ByteBuffer other) {
+            ByteBuffer b = buffer;
+            buffer = other;
+            return b;
+        }
+
+        /**
+         * Exchange buffers with another claimed slot, e.g. to move a
+         * received packet to another lane without copying it.
+         */
+        public void swapBuffer(Slot other) {
+            ByteBuffer b = buffer;
+            buffer = other.buffer;
+            other.buffer = b;
+        }
+    }
+
+    /**
+     * The slots and positions of one lane.
+     */
+    private static class Lane {
+        private final Slot[] slots;
+        private final int mask;
+
+        // written only by the producer
+        private long writePosition;
+        private int staged;
+        private final AtomicLong readPosition = new AtomicLong();
+
+        private Lane(int size, int bufferSize) {
+            int count = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+            slots = new Slot[count];
+            mask = count - 1;
+            for (int i = 0; i < count; i++) {
+                slots[i] = new Slot(this, bufferSize, i);
+            }
+        }
+
+        private Slot claim() {
+            long position = writePosition + staged;
+            Slot slot = slots[(int) (position & mask)];
+            return (slot.sequence == position) ? slot : null;
+        }
+
+        /**
+         * @return the number of slots published
+         */
+        private int publishStaged() {
+            int count = staged;
+            for (int i = 0; i < count; i++) {
+                long position = writePosition + i;
+                slots[(int) (position & mask)].sequence = position + 1;
+            }
+            writePosition += count;
+            staged = 0;
+            return count;
+        }
+
+        private Slot poll() {
+            while (true) {
+                long position = readPosition.get();
+                Slot slot = slots[(int) (position & mask)];
+                long sequence = slot.sequence;
+                if (sequence == position + 1) {
+                    if (readPosition.compareAndSet(position, position + 1)) {
+                        slot.position = position;
+                        return slot;
+                    }
+                } else if (sequence <= position) {
+                    // not published yet
+                    return null;
+                }
+                // another consumer got there first; try the next one
+            }
+        }
+
+        private boolean isEmpty() {
+            long position = readPosition.get();
+            return slots[(int) (position & mask)].sequence != position + 1;
+        }
+    }
+
+    private final Lane[] lanes;
+    private final WaitStrategy waitStrategy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile int waiters;
+    private volatile boolean closed;
+
+    /**
+     * Create a ring with a single lane.
+     *
+     * @param size       the number of slots (rounded up to a power of two)
+     * @param bufferSize the size of each slot's buffer
+     */
+    public PacketRing(int size, int bufferSize, WaitStrategy waitStrategy) {
+        this(1, size, bufferSize, waitStrategy);
+    }
+
+    /**
+     * @param laneCount  the number of lanes, lane 0 being taken first
+     * @param size       the number of slots per lane (rounded up to a
+     *                   power of two)
+     * @param bufferSize the size of each slot's buffer
+     */
+    public PacketRing(int laneCount, int size, int bufferSize, WaitStrategy waitStrategy) {
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(size, bufferSize);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Return the number of slots in each lane.
+     */
+    public int capacity() {
+        return lanes[0].slots.length;
+    }
+
+    /**
+     * Return the next free slot of a lane, or null if the lane is
+     * full.  The slot stays claimed until it is staged or published,
+     * so a caller that ends up with nothing to hand on just claims
+     * it again next time.  Producer only.
+     */
+    public Slot claim(int lane) {
+        return lanes[lane].claim();
+    }
+
+    /**
+     * Return the next free slot of lane 0.  Producer only.
+     */
+    public Slot claim() {
+        return claim(0);
+    }
+
+    /**
+     * Hand the claimed slot to the consumers.  Producer only.
+     */
+    public void publish(Slot slot) {
+        stage(slot);
+        publishStaged();
+    }
+
+    /**
+     * Add the claimed slot to a batch that is handed to the
+     * consumers by {@link #publishStaged()}.  Producer only.
+     */
+    public void stage(Slot slot) {
+        slot.lane.staged++;
+    }
+
+    /**
+     * Hand every staged slot to the consumers at once, with at most
+     * one wakeup per waiting consumer.  Producer only.
+     */
+    public void publishStaged() {
+        int count = 0;
+        for (Lane lane : lanes) {
+            if (lane.staged > 0) {
+                count += lane.publishStaged();
+            }
+        }
+        if (count > 0 && waiters > 0) {
+            lock.lock();
+            try {
+                if (count == 1) {
+                    notEmpty.signal();
+                } else {
+                    notEmpty.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Take the next published slot, from the lowest-numbered lane
+     * that has one, waiting if there is none.
+     *
+     * @return the slot, or null once the ring has been closed (or
+     * the calling thread interrupted)
+     */
+    public Slot take() {
+        while (true) {
+            Slot slot = poll();
+            if (slot != null) {
+                return slot;
+            }
+            if (closed || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            switch (waitStrategy) {
+                case BLOCKING:
+                    await();
+                    break;
+                case YIELDING:
+                    Thread.yield();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Return a taken slot to the producer.
+     */
+    public void release(Slot slot) {
+        slot.source = null;
+        slot.sequence = slot.position + slot.lane.slots.length;
+    }
+
+    /**
+     * Wake every waiting consumer and make {@link #take()} return
+     * null once the ring is empty.
+     */
+    public void close() {
+        closed = true;
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Slot poll() {
+        for (Lane lane : lanes) {
+            Slot slot = lane.poll();
+            if (slot != null) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private boolean isEmpty() {
+        for (Lane lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void await() {
+        lock.lock();
+        try {
+            waiters++;
+            while (isEmpty() && !closed) {
+                notEmpty.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiters--;
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package mdns.android.com.mdns.multicast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mdns.android.com.mdns.dns.DNSName;
+import mdns.android.com.mdns.dns.DNSQuestion;
+
+/**
+ * Standing ("continuous") queries, re-sent following RFC 6762
+ * section 5.2: the first repeat comes one second after the first
+ * query, and each interval after that doubles, up to one hour.
+ * <p/>
+ * Every standing query is a timer on one {@link TimingWheel}, so any
+ * number of them costs one wakeup per tick of the network loop, not
+ * a thread or a handler post each.  A query whose answers are
+ * already fresh in the {@link RecordCache} is not sent when its
+ * timer fires; it just backs off as if it had been.
+ * <p/>
+ * The scheduler is only used from the network thread and is not
+ * thread-safe.
+ */
+public class QueryScheduler {
+
+    /**
+     * Sends the questions of standing queries as they come due.
+     */
+    public interface Sender {
+        void sendQuery(DNSQuestion question);
+    }
+
+    public static final long MIN_INTERVAL = 1000;
+    public static final long MAX_INTERVAL = 60 * 60 * 1000;
+
+    private static final long TICK_MILLIS = 250;
+    private static final int WHEEL_SLOTS = 64;
+
+    /**
+     * A standing query.
+     */
+    private static class StandingQuery extends TimingWheel.Timer {
+        private final QueryScheduler scheduler;
+        private final DNSQuestion question;
+        private long interval;
+
+        private StandingQuery(QueryScheduler scheduler, DNSQuestion question) {
+            this.scheduler = scheduler;
+            this.question = question;
+        }
+
+        @Override
+        protected void onExpired(long now) {
+            scheduler.fire(this, now);
+        }
+    }
+
+    private final Map<DNSName, List<StandingQuery>> queriesByName =
+            new HashMap<DNSName, List<StandingQuery>>();
+    private final TimingWheel wheel;
+    private final RecordCache recordCache;
+    private final Sender sender;
+
+    public QueryScheduler(RecordCache recordCache, Sender sender, long now) {
+        this.wheel = new TimingWheel(TICK_MILLIS, WHEEL_SLOTS, now);
+        this.recordCache = recordCache;
+        this.sender = sender;
+    }
+
+    public int size() {
+        return wheel.size();
+    }
+
+    /**
+     * Start a standing query.  The first query is sent right away
+     * (unless the cache already answers it).  Starting a query that
+     * is already standing does nothing.
+     */
+    public void start(DNSQuestion question, long now) {
+        List<StandingQuery> queries = queriesByName.get(question.name);
+        if (queries == null) {
+            queries = new ArrayList<StandingQuery>(2);
+            queriesByName.put(question.name, queries);
+        }
+        for (StandingQuery query : queries) {
+            if (query.question.typeCode == question.typeCode) {
+                return;
+            }
+        }
+        StandingQuery query = new StandingQuery(this, question);
+        queries.add(query);
+        fire(query, now);
+    }
+
+    /**
+     * Stop a standing query.
+     */
+    public void stop(DNSQuestion question) {
+        List<StandingQuery> queries = queriesByName.get(question.name);
+        if (queries == null) {
+            return;
+        }
+        for (int i = 0; i < queries.size(); i++) {
+            StandingQuery query = queries.get(i);
+            if (query.question.typeCode == question.typeCode) {
+                wheel.cancel(query);
+                queries.remove(i);
+                break;
+            }
+        }
+        if (queries.isEmpty()) {
+            queriesByName.remove(question.name);
+        }
+    }
+
+    /**
+     * Restart the back-off of every standing query, sending them all
+     * again now.  Called when the network changes, since what we
+     * knew about the old network no longer holds (RFC 6762 section
+     * 8.3).
+     */
+    public void reset(long now) {
+        for (List<StandingQuery> queries : queriesByName.values()) {
+            for (StandingQuery query : queries) {
+                query.interval = 0;
+                wheel.schedule(query, now);
+            }
+        }
+    }
+
+    /**
+     * Send the standing queries that have come due.
+     */
+    public void advance(long now) {
+        wheel.advance(now);
+    }
+
+    /**
+     * Return the earliest time at which a query might come due, or
+     * -1 if there are no standing queries.
+     */
+    public long nextDeadline() {
+        return wheel.nextExpiryTime();
+    }
+
+    public void clear() {
+        for (List<StandingQuery> queries : queriesByName.values()) {
+            for (StandingQuery query : queries) {
+                wheel.cancel(query);
+            }
+        }
+        queriesByName.clear();
+    }
+
+    private void fire(StandingQuery query, long now) {
+        DNSQuestion question = query.question;
+        if (!recordCache.hasFresh(question.name, question.typeCode, now)) {
+            sender.sendQuery(question);
+        }
+        query.interval = (query.interval == 0)
+                ? MIN_INTERVAL
+                : Math.min(query.interval * 2, MAX_INTERVAL);
+        wheel.schedule(query, now + query.interval);
+    }
+
+}
@@ -0,0 +1,292 @@
+package mdns.android.com.mdns.multicast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mdns.android.com.mdns.dns.DNSAnswer;
+import mdns.android.com.mdns.dns.DNSComponent;
+import mdns.android.com.mdns.dns.DNSName;
+
+/**
+ * A cache of the resource records seen on the network, solicited or
+ * not, so that lookups can often be answered without a query.
+ * <p/>
+ * Records are keyed by name, type and rdata.  Each record carries a
+ * timer on a {@link TimingWheel}, so expiring records costs O(1) per
+ * tick rather than a timer per record or a scan of the whole cache.
+ * <p/>
+ * The mDNS rules of RFC 6762 section 10 are followed: a record with
+ * the cache-flush bit set causes other records of the same name and
+ * type received more than a second earlier to expire in one second,
+ * and a record with a TTL of zero (a "goodbye") expires the cached
+ * copy in one second.
+ * <p/>
+ * Times are in milliseconds from any monotonic clock.  All methods
+ * are synchronized.
+ */
+public class RecordCache {
+
+    // the TTL given to flushed records and goodbyes
+    private static final long FLUSH_DELAY = 1000;
+
+    private static final long TICK_MILLIS = 250;
+    private static final int WHEEL_SLOTS = 512;
+
+    /**
+     * A cached record.
+     */
+    public static class Entry extends TimingWheel.Timer {
+        private final RecordCache cache;
+        // the cache's own copy, replaced rather than changed when the
+        // record is refreshed
+        private volatile DNSAnswer record;
+        private long received;
+        private long ttlMillis;
+
+        private Entry(RecordCache cache, DNSAnswer record) {
+            this.cache = cache;
+            this.record = record;
+        }
+
+        public DNSAnswer getRecord() {
+            return record;
+        }
+
+        public long getReceived() {
+            return received;
+        }
+
+        /**
+         * Return the remaining TTL, in milliseconds.
+         */
+        public long getRemaining(long now) {
+            return Math.max(0, deadline - now);
+        }
+
+        /**
+         * Return the remaining TTL, in whole seconds.
+         */
+        public int getRemainingTtl(long now) {
+            return (int) (getRemaining(now) / 1000);
+        }
+
+        /**
+         * Return true if more than half of the original TTL remains.
+         */
+        public boolean isFresh(long now) {
+            return getRemaining(now) * 2 > ttlMillis;
+        }
+
+        @Override
+        protected void onExpired(long now) {
+            cache.remove(this);
+        }
+    }
+
+    private final Map<DNSName, List<Entry>> entriesByName = new HashMap<DNSName, List<Entry>>();
+    private final TimingWheel wheel;
+    private int size;
+
+    public RecordCache(long now) {
+        wheel = new TimingWheel(TICK_MILLIS, WHEEL_SLOTS, now);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Add or refresh a record received at the given time.  The cache
+     * keeps a copy with its own rdata, so the record itself is left
+     * untouched and may be handed on to other threads.
+     */
+    public synchronized void add(DNSAnswer record, long now) {
+        if (record.typeCode == DNSComponent.Type.OPT.qtype) {
+            return;
+        }
+
+        List<Entry> entries = entriesByName.get(record.name);
+        if (entries == null) {
+            if (record.ttl == 0) {
+                return;
+            }
+            entries = new ArrayList<Entry>(4);
+            entriesByName.put(record.name, entries);
+        }
+
+        // a cache-flush record replaces all others of its type that
+        // are more than a second old
+        if (record.cacheFlush && record.ttl != 0) {
+            for (Entry entry : entries) {
+                if (entry.record.typeCode == record.typeCode
+                        && entry.received < now - FLUSH_DELAY
+                        && entry.getDeadline() > now + FLUSH_DELAY
+                        && !entry.record.isSameRecord(record)) {
+                    wheel.schedule(entry, now + FLUSH_DELAY);
+                }
+            }
+        }
+
+        Entry entry = null;
+        for (Entry e : entries) {
+            if (e.record.isSameRecord(record)) {
+                entry = e;
+                break;
+            }
+        }
+
+        if (record.ttl == 0) {
+            // goodbye
+            if (entry != null) {
+                wheel.schedule(entry, now + FLUSH_DELAY);
+            } else if (entries.isEmpty()) {
+                entriesByName.remove(record.name);
+            }
+            return;
+        }
+
+        if (entry == null) {
+            entry = new Entry(this, copyOf(record));
+            entries.add(entry);
+            size++;
+        } else {
+            entry.record = copyOf(record);
+        }
+        entry.received = now;
+        entry.ttlMillis = (record.ttl & 0xFFFFFFFFL) * 1000;
+        wheel.schedule(entry, now + entry.ttlMillis);
+    }
+
+    public synchronized void addAll(List<DNSAnswer> records, long now) {
+        for (DNSAnswer record : records) {
+            add(record, now);
+        }
+    }
+
+    /**
+     * Return the live entries for a name and type.  Type ANY
+     * matches every type.
+     */
+    public synchronized List<Entry> lookup(DNSName name, int type, long now) {
+        List<Entry> result = new ArrayList<Entry>();
+        List<Entry> entries = entriesByName.get(name);
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (matches(entry, type) && entry.getDeadline() > now) {
+                    result.add(entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return copies of the live records for a name and type, each
+     * carrying its remaining TTL, or an empty list.  Type ANY
+     * matches every type.
+     */
+    public synchronized List<DNSAnswer> getAnswers(DNSName name, int type, long now) {
+        List<Entry> entries = entriesByName.get(name);
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        List<DNSAnswer> answers = null;
+        for (Entry entry : entries) {
+            if (matches(entry, type) && entry.getDeadline() > now) {
+                if (answers == null) {
+                    answers = new ArrayList<DNSAnswer>();
+                }
+                answers.add(entry.record.withTtl(entry.getRemainingTtl(now)));
+            }
+        }
+        return (answers != null) ? answers : Collections.<DNSAnswer>emptyList();
+    }
+
+    /**
+     * Return the records for a name and type that are worth sending
+     * as known answers: those with more than half their TTL left
+     * (RFC 6762 section 7.1).  They carry the remaining TTL.
+     */
+    public synchronized List<DNSAnswer> getKnownAnswers(DNSName name, int type, long now) {
+        List<Entry> entries = entriesByName.get(name);
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        List<DNSAnswer> knownAnswers = null;
+        for (Entry entry : entries) {
+            if (matches(entry, type) && entry.isFresh(now)) {
+                if (knownAnswers == null) {
+                    knownAnswers = new ArrayList<DNSAnswer>();
+                }
+                knownAnswers.add(entry.record.withTtl(entry.getRemainingTtl(now)));
+            }
+        }
+        return (knownAnswers != null) ? knownAnswers : Collections.<DNSAnswer>emptyList();
+    }
+
+    /**
+     * Return true if the cache holds at least one record for the
+     * name and type with more than half of its TTL left.
+     */
+    public synchronized boolean hasFresh(DNSName name, int type, long now) {
+        List<Entry> entries = entriesByName.get(name);
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (matches(entry, type) && entry.isFresh(now)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Expire the records whose TTL has run out.
+     */
+    public synchronized void expire(long now) {
+        wheel.advance(now);
+    }
+
+    /**
+     * Return the earliest time at which a record might expire, or
+     * -1 if the cache is empty.
+     */
+    public synchronized long nextExpiryCheck() {
+        return wheel.nextExpiryTime();
+    }
+
+    public synchronized void clear() {
+        for (List<Entry> entries : entriesByName.values()) {
+            for (Entry entry : entries) {
+                wheel.cancel(entry);
+            }
+        }
+        entriesByName.clear();
+        size = 0;
+    }
+
+    private void remove(Entry entry) {
+        List<Entry> entries = entriesByName.get(entry.record.name);
+        if (entries != null && entries.remove(entry)) {
+            size--;
+            if (entries.isEmpty()) {
+                entriesByName.remove(entry.record.name);
+            }
+        }
+    }
+
+    private static DNSAnswer copyOf(DNSAnswer record) {
+        DNSAnswer copy = record.withTtl(record.ttl);
+        copy.cacheFlush = record.cacheFlush;
+        copy.detach();
+        return copy;
+    }
+
+    private static boolean matches(Entry entry, int type) {
+        return type == DNSComponent.Type.ANY.qtype || entry.record.typeCode == type;
+    }
+
+}
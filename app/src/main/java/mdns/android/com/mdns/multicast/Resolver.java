@@ -0,0 +1,260 @@
+package mdns.android.com.mdns.multicast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import mdns.android.com.mdns.dns.DNSAnswer;
+import mdns.android.com.mdns.dns.DNSComponent;
+import mdns.android.com.mdns.dns.DNSName;
+import mdns.android.com.mdns.dns.DNSQuestion;
+
+/**
+ * One-shot lookups that complete a future with the first answers to
+ * arrive.
+ * <p/>
+ * Lookups are single-flight: callers asking for the same name and
+ * type while a query for it is outstanding share that query, and all
+ * of their futures complete together.  Each caller still has its own
+ * timeout, kept as a timer on a {@link TimingWheel}.
+ * <p/>
+ * The resolver is thread-safe: lookups are started and timed out by
+ * the network thread, and answered by whichever thread parsed the
+ * answer.  Futures are completed outside the resolver's lock, on one
+ * of those threads, so callers should not block in their
+ * continuations.
+ */
+public class Resolver {
+
+    /**
+     * Sends the question of a new lookup.
+     */
+    public interface Sender {
+        void sendQuery(DNSQuestion question);
+    }
+
+    private static final long TICK_MILLIS = 50;
+    private static final int WHEEL_SLOTS = 256;
+
+    /**
+     * The query for one name and type, and everyone waiting on it.
+     */
+    private static class Flight {
+        private final DNSQuestion question;
+        private final List<Waiter> waiters = new ArrayList<Waiter>(2);
+
+        private Flight(DNSQuestion question) {
+            this.question = question;
+        }
+    }
+
+    /**
+     * One caller's future, and its timeout.
+     */
+    private static class Waiter extends TimingWheel.Timer {
+        private final Resolver resolver;
+        private final Flight flight;
+        private final CompletableFuture<List<DNSAnswer>> future;
+        // the outcome, once there is one
+        private List<DNSAnswer> answers;
+        private Throwable error;
+
+        private Waiter(Resolver resolver, Flight flight, CompletableFuture<List<DNSAnswer>> future) {
+            this.resolver = resolver;
+            this.flight = flight;
+            this.future = future;
+        }
+
+        @Override
+        protected void onExpired(long now) {
+            resolver.timeOut(this);
+        }
+    }
+
+    private final Map<DNSName, List<Flight>> flightsByName = new HashMap<DNSName, List<Flight>>();
+    private final TimingWheel wheel;
+    private final RecordCache recordCache;
+    private final Sender sender;
+
+    // waiters with an outcome, to be completed outside the lock
+    private List<Waiter> finished = new ArrayList<Waiter>();
+
+    public Resolver(RecordCache recordCache, Sender sender, long now) {
+        this.wheel = new TimingWheel(TICK_MILLIS, WHEEL_SLOTS, now);
+        this.recordCache = recordCache;
+        this.sender = sender;
+    }
+
+    /**
+     * Complete the future with the cached answers for the question
+     * if there are any; otherwise join (or start) the flight for it.
+     *
+     * @param timeout in milliseconds
+     */
+    public void resolve(DNSQuestion question, long timeout,
+                        CompletableFuture<List<DNSAnswer>> future, long now) {
+        List<DNSAnswer> answers = join(question, timeout, future, now);
+        if (answers != null) {
+            future.complete(answers);
+        }
+    }
+
+    private synchronized List<DNSAnswer> join(DNSQuestion question, long timeout,
+                                              CompletableFuture<List<DNSAnswer>> future, long now) {
+        // the cache may have filled since the caller checked it
+        List<DNSAnswer> answers = recordCache.getAnswers(question.name, question.typeCode, now);
+        if (!answers.isEmpty()) {
+            return answers;
+        }
+
+        List<Flight> flights = flightsByName.get(question.name);
+        if (flights == null) {
+            flights = new ArrayList<Flight>(2);
+            flightsByName.put(question.name, flights);
+        }
+        Flight flight = null;
+        for (Flight f : flights) {
+            if (f.question.typeCode == question.typeCode) {
+                flight = f;
+                break;
+            }
+        }
+        if (flight == null) {
+            flight = new Flight(question);
+            flights.add(flight);
+            sender.sendQuery(question);
+        }
+
+        Waiter waiter = new Waiter(this, flight, future);
+        flight.waiters.add(waiter);
+        wheel.schedule(waiter, now + timeout);
+        return null;
+    }
+
+    /**
+     * Complete the flights answered by newly received records.  The
+     * records must already be in the cache.
+     */
+    public void onRecords(List<DNSAnswer> records, long now) {
+        synchronized (this) {
+            if (flightsByName.isEmpty()) {
+                return;
+            }
+            landFlights(records, now);
+        }
+        completeFinished();
+    }
+
+    private void landFlights(List<DNSAnswer> records, long now) {
+        for (DNSAnswer record : records) {
+            if (record.ttl == 0) {
+                continue;
+            }
+            List<Flight> flights = flightsByName.get(record.name);
+            if (flights == null) {
+                continue;
+            }
+            for (int i = flights.size() - 1; i >= 0; i--) {
+                Flight flight = flights.get(i);
+                int type = flight.question.typeCode;
+                if (type == record.typeCode || type == DNSComponent.Type.ANY.qtype) {
+                    flights.remove(i);
+                    land(flight, recordCache.getAnswers(record.name, type, now));
+                }
+            }
+            if (flights.isEmpty()) {
+                flightsByName.remove(record.name);
+            }
+        }
+    }
+
+    /**
+     * Time out the lookups that have waited too long.
+     */
+    public void advance(long now) {
+        synchronized (this) {
+            wheel.advance(now);
+        }
+        completeFinished();
+    }
+
+    /**
+     * Return the earliest time at which a lookup might time out, or
+     * -1 if there are no lookups outstanding.
+     */
+    public synchronized long nextDeadline() {
+        return wheel.nextExpiryTime();
+    }
+
+    /**
+     * Fail every outstanding lookup, for when the network thread
+     * stops.
+     */
+    public void cancelAll() {
+        List<Waiter> cancelled = new ArrayList<Waiter>();
+        synchronized (this) {
+            for (List<Flight> flights : flightsByName.values()) {
+                for (Flight flight : flights) {
+                    for (Waiter waiter : flight.waiters) {
+                        wheel.cancel(waiter);
+                        cancelled.add(waiter);
+                    }
+                }
+            }
+            flightsByName.clear();
+        }
+        for (Waiter waiter : cancelled) {
+            waiter.future.cancel(false);
+        }
+    }
+
+    private void land(Flight flight, List<DNSAnswer> answers) {
+        for (Waiter waiter : flight.waiters) {
+            wheel.cancel(waiter);
+            waiter.answers = answers;
+            finished.add(waiter);
+        }
+    }
+
+    /**
+     * Complete the futures of the waiters that have an outcome.
+     * Called without the lock held.
+     */
+    private void completeFinished() {
+        List<Waiter> done;
+        synchronized (this) {
+            if (finished.isEmpty()) {
+                return;
+            }
+            done = finished;
+            finished = new ArrayList<Waiter>();
+        }
+        for (Waiter waiter : done) {
+            if (waiter.error != null) {
+                waiter.future.completeExceptionally(waiter.error);
+            } else {
+                waiter.future.complete(waiter.answers);
+            }
+        }
+    }
+
+    private void timeOut(Waiter waiter) {
+        Flight flight = waiter.flight;
+        flight.waiters.remove(waiter);
+        waiter.error = new TimeoutException("no answer for " + flight.question);
+        finished.add(waiter);
+        if (flight.waiters.isEmpty()) {
+            List<Flight> flights = flightsByName.get(flight.question.name);
+            if (flights != null) {
+                flights.remove(flight);
+                if (flights.isEmpty()) {
+                    flightsByName.remove(flight.question.name);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package mdns.android.com.mdns.multicast;
+
+import java.net.InetAddress;
+
+/**
+ * A token bucket per source address, so that one device flooding
+ * the mDNS port cannot take all of our parsing.
+ * <p/>
+ * Each source may send a burst of packets, then a steady rate; the
+ * packets beyond that are dropped before they are parsed.  The
+ * buckets live in parallel primitive arrays keyed by the address's
+ * int hash (which, for IPv4, is the address itself), searched over
+ * a short probe sequence.  Nothing is allocated per packet.  A
+ * bucket that has refilled completely holds no state worth keeping,
+ * so it is reused for a new source; if none is found, the bucket
+ * idle the longest is reused.
+ * <p/>
+ * Tokens are counted in thousandths of a packet, so refilling needs
+ * only integer arithmetic on millisecond times.
+ * <p/>
+ * Only used from the network thread; not thread-safe.
+ */
+public class SourceRateLimiter {
+
+    private static final int PROBES = 8;
+    private static final long TOKEN = 1000;
+
+    private final int[] keys;
+    private final long[] tokens;
+    private final long[] lastSeen;
+    private final int mask;
+    private final long rate;
+    private final long burst;
+    private volatile long droppedCount;
+
+    /**
+     * @param size  the number of sources tracked (rounded up to a
+     *              power of two)
+     * @param rate  the steady rate allowed per source, in packets
+     *              per second
+     * @param burst the most packets a source may send at once
+     */
+    public SourceRateLimiter(int size, int rate, int burst) {
+        int count = Integer.highestOneBit(Math.max(size - 1, PROBES)) << 1;
+        this.keys = new int[count];
+        this.tokens = new long[count];
+        this.lastSeen = new long[count];
+        this.mask = count - 1;
+        // packets per second is thousandths of a packet per ms
+        this.rate = rate;
+        this.burst = burst * TOKEN;
+    }
+
+    /**
+     * Take a token from the source's bucket.
+     *
+     * @param now the current time, in milliseconds (never 0)
+     * @return false if the source is over its rate and the packet
+     * should be dropped
+     */
+    public boolean allow(InetAddress source, long now) {
+        int key = source.hashCode();
+        int start = mix(key) & mask;
+        int victim = -1;
+        for (int p = 0; p < PROBES; p++) {
+            int i = (start + p) & mask;
+            if (lastSeen[i] == 0) {
+                if (victim < 0 || lastSeen[victim] != 0) {
+                    victim = i;
+                }
+                continue;
+            }
+            long available = refill(i, now);
+            if (keys[i] == key) {
+                return take(i, available, now);
+            }
+            if (available >= burst) {
+                // full and idle: free to reuse
+                if (victim < 0 || lastSeen[victim] != 0) {
+                    victim = i;
+                    lastSeen[i] = 0;
+                }
+            } else if (victim < 0 || (lastSeen[victim] != 0 && lastSeen[i] < lastSeen[victim])) {
+                victim = i;
+            }
+        }
+        keys[victim] = key;
+        return take(victim, burst, now);
+    }
+
+    /**
+     * Return the number of packets refused.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private long refill(int i, long now) {
+        return Math.min(burst, tokens[i] + (now - lastSeen[i]) * rate);
+    }
+
+    private boolean take(int i, long available, long now) {
+        lastSeen[i] = now;
+        if (available < TOKEN) {
+            tokens[i] = available;
+            droppedCount++;
+            return false;
+        }
+        tokens[i] = available - TOKEN;
+        return true;
+    }
+
+    private static int mix(int key) {
+        key *= 0x9E3779B9;
+        return key ^ (key >>> 16);
+    }
+
+}
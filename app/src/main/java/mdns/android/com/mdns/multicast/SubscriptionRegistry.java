@@ -0,0 +1,245 @@
+package mdns.android.com.mdns.multicast;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mdns.android.com.mdns.dns.DNSAnswer;
+import mdns.android.com.mdns.dns.DNSComponent;
+import mdns.android.com.mdns.dns.DNSName;
+
+/**
+ * Routes received records to the listeners that asked for them.
+ * <p/>
+ * A subscription names either one owner name or a suffix (such as a
+ * service type, _http._tcp.local), and a record type or ANY.  The
+ * subscriptions are indexed by the case-insensitive hash of their
+ * name, and a record is routed by looking up the hashes of its
+ * name's suffixes, which {@link DNSName} already holds.  Only the
+ * suffix lengths that some subscription uses are looked up, so the
+ * cost of routing a record does not grow with the number of
+ * subscribers.
+ * <p/>
+ * Subscribing and cancelling may be done from any thread.  Each
+ * change publishes a new immutable index, so routing on the parser
+ * threads never takes a lock.
+ */
+public class SubscriptionRegistry {
+
+    /**
+     * Receives the records that match a subscription.  Called on a
+     * parser thread, once per packet, with the matching records of
+     * that packet.  With more than one parser thread (see
+     * {@link NetThread#setParserThreads}) calls may overlap and
+     * arrive out of order, so listeners must be thread-safe.
+     */
+    public interface RecordListener {
+        void onRecords(List<DNSAnswer> records);
+    }
+
+    /**
+     * A registered interest.  Cancel it to stop receiving records.
+     */
+    public static class Subscription {
+        public final DNSName name;
+        public final boolean suffix;
+        public final int type;
+        private final RecordListener listener;
+        private final SubscriptionRegistry registry;
+
+        private Subscription(SubscriptionRegistry registry, DNSName name, boolean suffix,
+                             int type, RecordListener listener) {
+            this.registry = registry;
+            this.name = name;
+            this.suffix = suffix;
+            this.type = type;
+            this.listener = listener;
+        }
+
+        public void cancel() {
+            registry.remove(this);
+        }
+
+        private boolean matches(DNSAnswer record, int labelIndex) {
+            if (type != DNSComponent.Type.ANY.qtype && type != record.typeCode) {
+                return false;
+            }
+            return suffix ? record.name.endsWith(name)
+                    : labelIndex == 0 && record.name.equals(name);
+        }
+    }
+
+    /**
+     * An immutable open-addressed table from name hash to the
+     * subscriptions with that hash.
+     */
+    private static class Index {
+        private final int[] hashes;
+        private final Subscription[][] subscriptions;
+        private final int mask;
+        // bit k is set if some subscription name has k labels
+        private final long labelCounts;
+
+        private Index(List<Subscription> all) {
+            int capacity = Integer.highestOneBit(Math.max(all.size(), 1) * 2 - 1) << 1;
+            hashes = new int[capacity];
+            subscriptions = new Subscription[capacity][];
+            mask = capacity - 1;
+            long counts = 0;
+            for (Subscription s : all) {
+                int hash = s.name.hashCode();
+                int i = hash & mask;
+                while (subscriptions[i] != null && hashes[i] != hash) {
+                    i = (i + 1) & mask;
+                }
+                Subscription[] old = subscriptions[i];
+                Subscription[] grown = new Subscription[(old == null) ? 1 : old.length + 1];
+                if (old != null) {
+                    System.arraycopy(old, 0, grown, 0, old.length);
+                }
+                grown[grown.length - 1] = s;
+                hashes[i] = hash;
+                subscriptions[i] = grown;
+                counts |= 1L << Math.min(s.name.labelCount(), 63);
+            }
+            labelCounts = counts;
+        }
+
+        private Subscription[] get(int hash) {
+            int i = hash & mask;
+            while (subscriptions[i] != null) {
+                if (hashes[i] == hash) {
+                    return subscriptions[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+    }
+
+    private final List<Subscription> all = new ArrayList<Subscription>();
+    private volatile Index index = new Index(all);
+
+    /**
+     * Subscribe to the records of one name.
+     *
+     * @param type a record type, or ANY
+     */
+    public Subscription subscribe(DNSName name, int type, RecordListener listener) {
+        return add(new Subscription(this, name, false, type, listener));
+    }
+
+    /**
+     * Subscribe to the records of every name ending in a suffix,
+     * for example every instance of a service type.
+     *
+     * @param type a record type, or ANY
+     */
+    public Subscription subscribeSuffix(DNSName suffix, int type, RecordListener listener) {
+        return add(new Subscription(this, suffix, true, type, listener));
+    }
+
+    public boolean isEmpty() {
+        return index.labelCounts == 0;
+    }
+
+    /**
+     * Check, by hash alone, whether some subscription might match a
+     * name, given the suffix hashes read by
+     * {@link mdns.android.com.mdns.dns.DNSBuffer#readNameHashes(int[])}.
+     * A hash collision can give a false positive, never a false
+     * negative.
+     */
+    public boolean mightMatch(int[] suffixHashes, int labelCount) {
+        Index idx = index;
+        if (idx.labelCounts == 0) {
+            return false;
+        }
+        for (int i = 0; i <= labelCount; i++) {
+            if ((idx.labelCounts & (1L << Math.min(labelCount - i, 63))) == 0) {
+                continue;
+            }
+            Subscription[] candidates = idx.get(suffixHashes[i]);
+            if (candidates == null) {
+                continue;
+            }
+            for (Subscription s : candidates) {
+                if (s.suffix || i == 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hand each subscriber the records of a packet that match its
+     * subscriptions.  The records handed on are detached from the
+     * packet buffer.  A listener that throws is reported to the
+     * error listener, and the other listeners still get their
+     * records.
+     */
+    public void route(List<DNSAnswer> records, IPCHandler.ErrorListener errors) {
+        Index idx = index;
+        if (idx.labelCounts == 0) {
+            return;
+        }
+        Map<Subscription, List<DNSAnswer>> matches = null;
+        for (DNSAnswer record : records) {
+            DNSName name = record.name;
+            boolean detached = false;
+            int labelCount = name.labelCount();
+            for (int i = 0; i <= labelCount; i++) {
+                if ((idx.labelCounts & (1L << Math.min(labelCount - i, 63))) == 0) {
+                    continue;
+                }
+                Subscription[] candidates = idx.get(name.suffixHash(i));
+                if (candidates == null) {
+                    continue;
+                }
+                for (Subscription s : candidates) {
+                    if (!s.matches(record, i)) {
+                        continue;
+                    }
+                    if (!detached) {
+                        record.detach();
+                        detached = true;
+                    }
+                    if (matches == null) {
+                        matches = new IdentityHashMap<Subscription, List<DNSAnswer>>();
+                    }
+                    List<DNSAnswer> list = matches.get(s);
+                    if (list == null) {
+                        list = new ArrayList<DNSAnswer>(4);
+                        matches.put(s, list);
+                    }
+                    list.add(record);
+                }
+            }
+        }
+        if (matches == null) {
+            return;
+        }
+        for (Map.Entry<Subscription, List<DNSAnswer>> e : matches.entrySet()) {
+            try {
+                e.getKey().listener.onRecords(e.getValue());
+            } catch (RuntimeException ex) {
+                errors.onError(ex);
+            }
+        }
+    }
+
+    private synchronized Subscription add(Subscription subscription) {
+        all.add(subscription);
+        index = new Index(all);
+        return subscription;
+    }
+
+    private synchronized void remove(Subscription subscription) {
+        if (all.remove(subscription)) {
+            index = new Index(all);
+        }
+    }
+
+}
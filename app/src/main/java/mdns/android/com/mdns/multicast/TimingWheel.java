@@ -0,0 +1,191 @@
+package mdns.android.com.mdns.multicast;
+
+/**
+ * A hashed timing wheel.
+ * <p/>
+ * Timers are kept in a ring of slots, one slot per tick.  A timer
+ * due more than one revolution away stays in its slot and counts
+ * down the revolutions.  Scheduling and cancelling are O(1), and
+ * advancing the wheel only visits the slots of the ticks that have
+ * passed, so the cost does not grow with the number of timers.
+ * <p/>
+ * Timers are intrusive (the links live in the {@link Timer} itself),
+ * so scheduling allocates nothing.  The wheel is not thread-safe;
+ * callers synchronize around it.
+ */
+public class TimingWheel {
+
+    /**
+     * An entry on the wheel.  Subclasses add their own payload.
+     */
+    public static abstract class Timer {
+        long deadline;
+        int rounds;
+        int slot;
+        Timer next;
+        Timer prev;
+        TimingWheel wheel;
+
+        public boolean isScheduled() {
+            return wheel != null;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Called by {@link TimingWheel#advance(long)} once the timer
+         * is due.  It has already been removed from the wheel, so it
+         * may be scheduled again.
+         */
+        protected abstract void onExpired(long now);
+    }
+
+    private final long tickMillis;
+    private final Timer[] slots;
+    private final int mask;
+    private long currentTick;
+    private int size;
+
+    // no timer expires before this tick; once it is not after the
+    // current tick it has to be found again
+    private long earliestTick;
+
+    /**
+     * @param tickMillis the resolution of the wheel
+     * @param slotCount  the number of slots (rounded up to a power of two)
+     * @param now        the current time, in milliseconds
+     */
+    public TimingWheel(long tickMillis, int slotCount, long now) {
+        int count = Integer.highestOneBit(Math.max(slotCount - 1, 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.slots = new Timer[count];
+        this.mask = count - 1;
+        this.currentTick = now / tickMillis;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedule (or reschedule) a timer to expire at the given time.
+     * Deadlines in the past expire on the next advance.
+     */
+    public void schedule(Timer timer, long deadline) {
+        if (timer.wheel != null) {
+            cancel(timer);
+        }
+        long tick = Math.max(deadline / tickMillis, currentTick + 1);
+        // round up, so a timer never fires early
+        if (tick * tickMillis < deadline) {
+            tick++;
+        }
+        long ticks = tick - currentTick;
+        earliestTick = Math.min(earliestTick, tick);
+        timer.deadline = deadline;
+        timer.rounds = (int) ((ticks - 1) / slots.length);
+
+        int slot = (int) (tick & mask);
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[slot] = timer;
+        timer.wheel = this;
+        size++;
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.wheel != this) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.next = null;
+        timer.prev = null;
+        timer.wheel = null;
+        size--;
+    }
+
+    /**
+     * Expire every timer due at or before the given time.
+     */
+    public void advance(long now) {
+        long targetTick = now / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            int slot = (int) (currentTick & mask);
+            Timer timer = slots[slot];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.rounds > 0) {
+                    timer.rounds--;
+                } else {
+                    cancel(timer);
+                    timer.onExpired(now);
+                }
+                timer = next;
+            }
+            if (size == 0) {
+                // nothing left to find; skip the idle ticks
+                currentTick = targetTick;
+            }
+        }
+    }
+
+    /**
+     * Return the time of the next tick, which is when the next
+     * timer could possibly expire.
+     */
+    public long nextTickTime() {
+        return (currentTick + 1) * tickMillis;
+    }
+
+    /**
+     * Return the time of the tick at which the earliest timer
+     * expires, or -1 if there are no timers, so that callers can
+     * sleep through the empty ticks.
+     * <p/>
+     * The tick is remembered, and only lowered by scheduling, so
+     * this is O(1) until the wheel advances past it; cancelling the
+     * earliest timer just costs one early wakeup.  Only then are the
+     * timers looked at again.
+     */
+    public long nextExpiryTime() {
+        if (size == 0) {
+            return -1;
+        }
+        if (earliestTick <= currentTick) {
+            earliestTick = findEarliestTick();
+        }
+        return earliestTick * tickMillis;
+    }
+
+    private long findEarliestTick() {
+        long earliest = Long.MAX_VALUE;
+        for (int ticks = 1; ticks <= slots.length; ticks++) {
+            for (Timer timer = slots[(int) ((currentTick + ticks) & mask)]; timer != null; timer = timer.next) {
+                if (timer.rounds == 0) {
+                    return currentTick + ticks;
+                }
+                earliest = Math.min(earliest, ticks + (long) timer.rounds * slots.length);
+            }
+        }
+        return currentTick + earliest;
+    }
+
+}
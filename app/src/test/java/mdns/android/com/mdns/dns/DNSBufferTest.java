@@ -0,0 +1,160 @@
+package mdns.android.com.mdns.dns;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * The bounds on reading compressed names: pointers must point
+ * backward, only so many are followed, and the decoded name may not
+ * be longer than {@link DNSName#MAX_LENGTH}.
+ */
+public class DNSBufferTest {
+
+    @Test
+    public void readsCompressedName() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeLabel(out, "local");
+        out.write(0);
+        writeLabel(out, "host");
+        writePointer(out, 0);
+
+        DNSBuffer buffer = new DNSBuffer(out.toByteArray());
+        buffer.offset = 7;
+        assertEquals(DNSName.of("host.local"), buffer.readDNSName());
+        // left just past the pointer, not where it led
+        assertEquals(14, buffer.offset);
+    }
+
+    @Test(expected = DNSException.class)
+    public void rejectsPointerToItself() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeLabel(out, "a");
+        writePointer(out, 2);
+
+        DNSBuffer buffer = new DNSBuffer(out.toByteArray());
+        buffer.readDNSName();
+    }
+
+    @Test(expected = DNSException.class)
+    public void rejectsForwardPointer() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writePointer(out, 4);
+        writeLabel(out, "a");
+        writePointer(out, 0);
+
+        DNSBuffer buffer = new DNSBuffer(out.toByteArray());
+        buffer.readDNSName();
+    }
+
+    @Test
+    public void followsPointerChainUpToTheLimit() throws Exception {
+        DNSBuffer buffer = new DNSBuffer(pointerChain(DNSBuffer.MAX_COMPRESSION_POINTERS));
+        buffer.offset = buffer.length - 2;
+        assertEquals(DNSName.of("a"), buffer.readDNSName());
+    }
+
+    @Test(expected = DNSException.class)
+    public void rejectsPointerChainOverTheLimit() throws Exception {
+        DNSBuffer buffer = new DNSBuffer(pointerChain(DNSBuffer.MAX_COMPRESSION_POINTERS + 1));
+        buffer.offset = buffer.length - 2;
+        buffer.readDNSName();
+    }
+
+    @Test(expected = DNSException.class)
+    public void rejectsOverlongName() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 5; i++) {
+            writeLabel(out, longLabel());
+        }
+        out.write(0);
+
+        DNSBuffer buffer = new DNSBuffer(out.toByteArray());
+        buffer.readDNSName();
+    }
+
+    @Test
+    public void rejectsOverlongNameBuiltFromPointers() throws Exception {
+        // each name is a 63-byte label followed by a pointer to the
+        // one before, so the fourth decodes to 4 * 64 + 1 bytes
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] offsets = new int[4];
+        writeLabel(out, longLabel());
+        out.write(0);
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] = out.size();
+            writeLabel(out, longLabel());
+            writePointer(out, offsets[i - 1]);
+        }
+
+        DNSBuffer buffer = new DNSBuffer(out.toByteArray());
+        buffer.offset = offsets[2];
+        assertEquals(3, buffer.readDNSName().labelCount());
+
+        buffer.offset = offsets[3];
+        try {
+            buffer.readDNSName();
+            fail("read a name longer than " + DNSName.MAX_LENGTH + " bytes");
+        } catch (DNSException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void hashesMatchDecodedName() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeLabel(out, "local");
+        out.write(0);
+        writeLabel(out, "Host");
+        writePointer(out, 0);
+
+        DNSBuffer buffer = new DNSBuffer(out.toByteArray());
+        buffer.offset = 7;
+        int[] hashes = new int[DNSName.MAX_LENGTH / 2 + 1];
+        int labelCount = buffer.readNameHashes(hashes);
+
+        DNSName name = DNSName.of("host.local");
+        assertEquals(name.labelCount(), labelCount);
+        for (int i = 0; i <= labelCount; i++) {
+            assertEquals(name.suffixHash(i), hashes[i]);
+        }
+    }
+
+    // "a" at offset 0, then a chain of pointers each pointing to the
+    // one before, so reading the last follows them all
+    private static byte[] pointerChain(int pointers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeLabel(out, "a");
+        out.write(0);
+        int previous = 0;
+        for (int i = 0; i < pointers; i++) {
+            int offset = out.size();
+            writePointer(out, previous);
+            previous = offset;
+        }
+        return out.toByteArray();
+    }
+
+    private static String longLabel() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < DNSName.MAX_LABEL_LENGTH; i++) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    private static void writeLabel(ByteArrayOutputStream out, String label) {
+        out.write(label.length());
+        for (int i = 0; i < label.length(); i++) {
+            out.write(label.charAt(i));
+        }
+    }
+
+    private static void writePointer(ByteArrayOutputStream out, int offset) {
+        out.write(0xC0 | (offset >>> 8));
+        out.write(offset & 0xFF);
+    }
+
+}
@@ -0,0 +1,145 @@
+package mdns.android.com.mdns.dns;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link DNSMessage#length()} must be the exact size of the message
+ * as serialized, with names compressed, since queries are packed to
+ * the MTU by it.
+ */
+public class DNSMessageTest {
+
+    private static final DNSName SERVICE = DNSName.of("_http._tcp.local");
+    private static final DNSName INSTANCE = DNSName.of("printer._http._tcp.local");
+    private static final DNSName HOST = DNSName.of("printer.local");
+
+    @Test
+    public void lengthMatchesSerializedSize() throws Exception {
+        DNSMessage message = serviceQuery(1472).get(0);
+
+        ByteBuffer target = ByteBuffer.allocate(1500);
+        assertEquals(message.length(), message.serialize(target));
+        assertEquals(message.length(), target.position());
+        assertEquals(message.length(), message.serialize().length);
+    }
+
+    @Test
+    public void lengthCountsCompressedNames() throws Exception {
+        DNSMessage message = serviceQuery(1472).get(0);
+
+        int uncompressed = 12;
+        for (DNSQuestion question : message.getQuestions()) {
+            uncompressed += question.length();
+        }
+        for (DNSAnswer answer : message.getAnswers()) {
+            uncompressed += answer.length();
+        }
+        assertTrue("names were not compressed", message.length() < uncompressed);
+    }
+
+    @Test
+    public void parsedMessageHasSameLength() throws Exception {
+        byte[] packet = serviceQuery(1472).get(0).serialize();
+
+        DNSMessage parsed = new DNSMessage(packet);
+        assertEquals(packet.length, parsed.length());
+        assertTrue(Arrays.equals(packet, parsed.serialize()));
+    }
+
+    @Test
+    public void splitQueryFitsMaxLength() throws Exception {
+        List<DNSAnswer> knownAnswers = new ArrayList<DNSAnswer>();
+        for (int i = 0; i < 40; i++) {
+            DNSName instance = DNSName.of("printer-" + i + "._http._tcp.local");
+            knownAnswers.add(new DNSAnswer(SERVICE, DNSComponent.Type.PTR.qtype, 4500,
+                    new DNSRdata.Name(instance)));
+        }
+        List<DNSMessage> messages = DNSMessage.query(questions(), knownAnswers, 512);
+
+        assertTrue(messages.size() > 1);
+        int answers = 0;
+        for (DNSMessage message : messages) {
+            byte[] packet = message.serialize();
+            assertEquals(message.length(), packet.length);
+            assertTrue(packet.length <= 512);
+            answers += message.getAnswers().size();
+        }
+        assertEquals(knownAnswers.size(), answers);
+    }
+
+    @Test
+    public void oversizedKnownAnswerLeavesNoTruncatedMessage() throws Exception {
+        List<String> strings = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            strings.add(longString());
+        }
+        List<DNSAnswer> knownAnswers = new ArrayList<DNSAnswer>();
+        knownAnswers.add(new DNSAnswer(INSTANCE, DNSComponent.Type.TXT.qtype, 4500,
+                new DNSRdata.Text(strings)));
+        List<DNSMessage> messages = DNSMessage.query(questions(), knownAnswers, 1472);
+
+        assertEquals(1, messages.size());
+        assertEquals(0, messages.get(0).getFlags() & DNSMessage.FLAG_TRUNCATED);
+        assertTrue(messages.get(0).getAnswers().isEmpty());
+    }
+
+    @Test
+    public void onlyMessagesWithFollowersAreTruncated() throws Exception {
+        List<DNSAnswer> knownAnswers = new ArrayList<DNSAnswer>();
+        for (int i = 0; i < 40; i++) {
+            DNSName instance = DNSName.of("printer-" + i + "._http._tcp.local");
+            knownAnswers.add(new DNSAnswer(SERVICE, DNSComponent.Type.PTR.qtype, 4500,
+                    new DNSRdata.Name(instance)));
+        }
+        // one that fits nowhere, at the end
+        List<String> strings = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            strings.add(longString());
+        }
+        knownAnswers.add(new DNSAnswer(INSTANCE, DNSComponent.Type.TXT.qtype, 4500,
+                new DNSRdata.Text(strings)));
+        List<DNSMessage> messages = DNSMessage.query(questions(), knownAnswers, 512);
+
+        for (int i = 0; i < messages.size(); i++) {
+            boolean truncated = (messages.get(i).getFlags() & DNSMessage.FLAG_TRUNCATED) != 0;
+            assertEquals("message " + i, i < messages.size() - 1, truncated);
+        }
+    }
+
+    private static String longString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 255; i++) {
+            sb.append('t');
+        }
+        return sb.toString();
+    }
+
+    private static List<DNSMessage> serviceQuery(int maxLength) throws Exception {
+        List<DNSAnswer> knownAnswers = new ArrayList<DNSAnswer>();
+        knownAnswers.add(new DNSAnswer(SERVICE, DNSComponent.Type.PTR.qtype, 4500,
+                new DNSRdata.Name(INSTANCE)));
+        knownAnswers.add(new DNSAnswer(INSTANCE, DNSComponent.Type.SRV.qtype, 120,
+                new DNSRdata.Srv(0, 0, 631, HOST)));
+        knownAnswers.add(new DNSAnswer(INSTANCE, DNSComponent.Type.TXT.qtype, 4500,
+                new DNSRdata.Text(Arrays.asList("txtvers=1", "rp=ipp/print"))));
+        knownAnswers.add(new DNSAnswer(HOST, DNSComponent.Type.A.qtype, 120,
+                new DNSRdata.Address(InetAddress.getByAddress(new byte[]{10, 0, 0, 7}))));
+        return DNSMessage.query(questions(), knownAnswers, maxLength);
+    }
+
+    private static List<DNSQuestion> questions() {
+        List<DNSQuestion> questions = new ArrayList<DNSQuestion>();
+        questions.add(new DNSQuestion(DNSComponent.Type.PTR, SERVICE));
+        questions.add(new DNSQuestion(DNSComponent.Type.A, HOST));
+        return questions;
+    }
+
+}
@@ -0,0 +1,150 @@
+package mdns.android.com.mdns.multicast;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * The ring hands each published packet to exactly one consumer, and
+ * packets moved to the priority lane keep their buffers.
+ */
+public class PacketRingTest {
+
+    private static final int NORMAL = 1;
+    private static final int PRIORITY = 0;
+
+    @Test
+    public void priorityLaneIsTakenFirst() throws Exception {
+        PacketRing ring = new PacketRing(2, 4, 16, PacketRing.WaitStrategy.BLOCKING);
+        PacketRing.Slot normal = ring.claim(NORMAL);
+        normal.hash = 1;
+        ring.stage(normal);
+        PacketRing.Slot priority = ring.claim(PRIORITY);
+        priority.hash = 2;
+        ring.stage(priority);
+        ring.publishStaged();
+
+        PacketRing.Slot slot = ring.take();
+        assertEquals(2, slot.hash);
+        ring.release(slot);
+        slot = ring.take();
+        assertEquals(1, slot.hash);
+        ring.release(slot);
+    }
+
+    @Test
+    public void unstagedSlotIsClaimedAgain() throws Exception {
+        PacketRing ring = new PacketRing(2, 4, 16, PacketRing.WaitStrategy.BLOCKING);
+        PacketRing.Slot normal = ring.claim(NORMAL);
+        PacketRing.Slot priority = ring.claim(PRIORITY);
+        normal.getBuffer().putInt(0, 42);
+        normal.swapBuffer(priority);
+        ring.stage(priority);
+
+        assertSame(normal, ring.claim(NORMAL));
+        ring.publishStaged();
+        assertEquals(42, ring.take().getBuffer().getInt(0));
+    }
+
+    @Test
+    public void fullLaneRefusesClaims() throws Exception {
+        PacketRing ring = new PacketRing(2, 4, 16, PacketRing.WaitStrategy.BLOCKING);
+        for (int i = 0; i < ring.capacity(); i++) {
+            ring.publish(ring.claim(NORMAL));
+        }
+        assertNull(ring.claim(NORMAL));
+        assertNotNull(ring.claim(PRIORITY));
+
+        ring.release(ring.take());
+        assertNotNull(ring.claim(NORMAL));
+    }
+
+    @Test(timeout = 60000)
+    public void consumersSeeEveryPacketOnce() throws Exception {
+        runConsumers(PacketRing.WaitStrategy.BLOCKING);
+        runConsumers(PacketRing.WaitStrategy.YIELDING);
+    }
+
+    /**
+     * One producer receives numbered packets into the normal lane and
+     * swaps every third into the priority lane; several consumers
+     * check that each packet's buffer still holds its number.
+     */
+    private static void runConsumers(PacketRing.WaitStrategy waitStrategy) throws Exception {
+        final int packets = 20000;
+        final PacketRing ring = new PacketRing(2, 8, 16, waitStrategy);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(packets);
+        final AtomicInteger errors = new AtomicInteger();
+
+        Thread[] consumers = new Thread[3];
+        for (int c = 0; c < consumers.length; c++) {
+            consumers[c] = new Thread() {
+                @Override
+                public void run() {
+                    PacketRing.Slot slot;
+                    while ((slot = ring.take()) != null) {
+                        int n = slot.getBuffer().getInt(0);
+                        boolean priority = slot.kind == PacketClassifier.ANSWER;
+                        if (n != slot.hash || priority != (n % 3 == 0)) {
+                            errors.incrementAndGet();
+                        }
+                        seen.incrementAndGet(n);
+                        ring.release(slot);
+                    }
+                }
+            };
+            consumers[c].start();
+        }
+
+        int n = 0;
+        while (n < packets) {
+            PacketRing.Slot slot = ring.claim(NORMAL);
+            if (slot == null) {
+                ring.publishStaged();
+                Thread.yield();
+                continue;
+            }
+            slot.getBuffer().putInt(0, n);
+            slot.kind = PacketClassifier.RESPONSE;
+            if (n % 3 == 0) {
+                PacketRing.Slot prioritySlot = ring.claim(PRIORITY);
+                if (prioritySlot == null) {
+                    // the normal slot is claimed again next time
+                    ring.publishStaged();
+                    Thread.yield();
+                    continue;
+                }
+                slot.swapBuffer(prioritySlot);
+                slot = prioritySlot;
+                slot.kind = PacketClassifier.ANSWER;
+            }
+            slot.hash = n;
+            ring.stage(slot);
+            if (++n % 5 == 0) {
+                ring.publishStaged();
+            }
+        }
+        ring.publishStaged();
+
+        // let the consumers drain the ring before closing it
+        for (int i = 0; i < packets; i++) {
+            while (seen.get(i) == 0 && errors.get() == 0) {
+                Thread.sleep(1);
+            }
+        }
+        ring.close();
+        for (Thread consumer : consumers) {
+            consumer.join(10000);
+            assertFalse(consumer.isAlive());
+        }
+
+        assertEquals(0, errors.get());
+        for (int i = 0; i < packets; i++) {
+            assertEquals("packet " + i, 1, seen.get(i));
+        }
+    }
+
+}